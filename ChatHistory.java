@@ -0,0 +1,144 @@
+// ChatHistory.java
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Fixed-capacity circular buffer of a room's most recent messages.
+// Appends are O(1) and must be serialized by the caller (the room lock);
+// reads take no lock and may run while a writer appends.
+public class ChatHistory {
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.historyCapacity", 100);
+
+    // Capacity of one room's history: -Dchat.historyCapacity.<room name>, else DEFAULT_CAPACITY
+    static int capacityFor(String room) {
+        return Integer.getInteger("chat.historyCapacity." + room, DEFAULT_CAPACITY);
+    }
+
+    // One stored message. seq is its position in the room's whole history.
+    record Entry(long seq, String username, String message) {}
+
+    // Rendered replay and the message count it was built from
+    private record Replay(long count, ByteBuffer bytes) {}
+
+    private final Entry[] entries;
+    // Number of messages ever appended. Written after the slot, so a reader that
+    // sees a count also sees every entry up to it.
+    private volatile long count = 0;
+    private volatile Replay cachedReplay = null;
+    private volatile Replay cachedReplayFrame = null; // same, as a Frames.HISTORY frame
+
+    ChatHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        this.entries = new Entry[capacity];
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+
+    // Id the next message will get
+    long nextSeq() {
+        return count;
+    }
+
+    // Number of messages currently held
+    int size() {
+        return (int) Math.min(count, entries.length);
+    }
+
+    // Callers hold the room lock. Returns the new message's seq.
+    long append(String username, String message) {
+        long seq = count;
+        entries[(int) (seq % entries.length)] = new Entry(seq, username, message);
+        count = seq + 1;
+        return seq;
+    }
+
+    // Refills the buffer from the message log before the room is shared, or from the
+    // owner's copy when a cluster node joins or takes over a room (callers hold the room lock)
+    void restore(long nextSeq, List<Entry> recent) {
+        for (Entry entry : recent) {
+            entries[(int) (entry.seq() % entries.length)] = entry;
+        }
+        count = nextSeq;
+    }
+
+    // The held message with id seq, or null if it has been pushed out
+    Entry get(long seq) {
+        Entry entry = seq >= 0 && seq < count ? entries[(int) (seq % entries.length)] : null;
+        return entry != null && entry.seq() == seq ? entry : null;
+    }
+
+    // Oldest to newest. A concurrent append may push the oldest entries out,
+    // in which case they are left off rather than returned twice.
+    List<Entry> snapshot() {
+        return snapshot(count);
+    }
+
+    // Up to limit held messages with ids below beforeSeq, oldest first. Empty when beforeSeq
+    // is at or below the oldest held message, including for a negative beforeSeq.
+    List<Entry> before(long beforeSeq, int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        List<Entry> entries = snapshot(Math.min(beforeSeq, count));
+        return entries.subList(Math.max(0, entries.size() - limit), entries.size());
+    }
+
+    private List<Entry> snapshot(long end) {
+        if (end <= Math.max(0, count - entries.length)) {
+            return List.of();
+        }
+        long start = Math.max(0, end - entries.length);
+        List<Entry> result = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            Entry entry = entries[(int) (seq % entries.length)];
+            if (entry != null && entry.seq() == seq) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    // The history block shown to someone joining, or null if the room has no messages.
+    // Rendered once and reused until the next message arrives.
+    ByteBuffer replay() {
+        long current = count;
+        if (current == 0) {
+            return null;
+        }
+        Replay replay = cachedReplay;
+        if (replay != null && replay.count() == current) {
+            return replay.bytes();
+        }
+
+        StringBuilder text = new StringBuilder();
+        text.append("\n=== Room History ===\n");
+        for (Entry entry : snapshot(current)) {
+            text.append("[").append(entry.username()).append("] : ").append(entry.message()).append("\n");
+        }
+        text.append("===================\n");
+
+        ByteBuffer bytes = OutboundQueue.encode(text.toString());
+        cachedReplay = new Replay(current, bytes);
+        return bytes;
+    }
+
+    // replay() for binary clients
+    ByteBuffer replayFrame(String room) {
+        long current = count;
+        if (current == 0) {
+            return null;
+        }
+        Replay replay = cachedReplayFrame;
+        if (replay != null && replay.count() == current) {
+            return replay.bytes();
+        }
+
+        ByteBuffer frame = Frames.history(room, snapshot(current));
+        cachedReplayFrame = new Replay(current, frame);
+        return frame;
+    }
+}
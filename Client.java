@@ -1,11 +1,13 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 public class Client {
     public static void main(String[] args) {
         String host = "localhost";
-        int port = 12345;
+        int port = Integer.getInteger("chat.port", 12345);
 
         Socket socket = null;
         Scanner scanner = null;
@@ -18,6 +20,12 @@ public class Client {
             System.out.println("Connected to chat server.");
             scanner = new Scanner(System.in);
 
+            // Binary frames unless -Dchat.protocol=text asks for the line protocol
+            if (!"text".equalsIgnoreCase(System.getProperty("chat.protocol", "frames"))) {
+                runFrames(socket, scanner);
+                return;
+            }
+
             // Setup streams
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             out = new PrintWriter(socket.getOutputStream(), true);
@@ -142,4 +150,118 @@ public class Client {
             System.out.println("Client shut down.");
         }
     }
-}
\ No newline at end of file
+
+    // Frames protocol: every frame says what it is, so nothing is guessed from the text
+    private static void runFrames(Socket socket, Scanner scanner) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+        // The greeting is always a text line, frames start after our HELLO
+        System.out.print(readTextLine(in) + " ");
+        send(out, Frames.hello());
+
+        Thread readerThread = new Thread(() -> {
+            try {
+                int opcode;
+                while ((opcode = in.read()) >= 0) {
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    if (opcode == Frames.PING) {
+                        // The server closes connections that stop answering
+                        send(out, Frames.pong());
+                        continue;
+                    }
+                    print((byte) opcode, ByteBuffer.wrap(payload));
+                }
+            } catch (IOException e) {
+                // Fall through
+            }
+            System.out.println("Connection closed by server.");
+        });
+        readerThread.start();
+
+        // Main input loop
+        while (scanner.hasNextLine()) {
+            String msg = scanner.nextLine();
+            if ("/exit".equalsIgnoreCase(msg)) {
+                System.out.println("Closing connection...");
+                break;
+            }
+            send(out, toFrame(msg));
+        }
+    }
+
+    // /join and /history become their own frames, anything else answers the current prompt
+    private static ByteBuffer toFrame(String msg) {
+        String[] parts = msg.trim().split("\\s+", 3);
+        if ("/join".equalsIgnoreCase(parts[0]) && parts.length == 3) {
+            return Frames.join(parts[1], parts[2]);
+        }
+        if ("/history".equalsIgnoreCase(parts[0])) {
+            // /history <n> [before <msgId>]
+            String[] args = msg.trim().split("\\s+");
+            try {
+                if (args.length == 2) {
+                    return Frames.historyPage(Integer.parseInt(args[1]), -1);
+                }
+                if (args.length == 4 && "before".equalsIgnoreCase(args[2])) {
+                    return Frames.historyPage(Integer.parseInt(args[1]), Long.parseLong(args[3]));
+                }
+            } catch (NumberFormatException e) {
+                // Let the server print the usage
+            }
+        }
+        return Frames.text(Frames.LINE, msg);
+    }
+
+    private static void print(byte opcode, ByteBuffer payload) {
+        switch (opcode) {
+            case Frames.TEXT -> System.out.print(Frames.getText(payload));
+            case Frames.MESSAGE -> {
+                payload.getLong(); // seq
+                payload.getLong(); // timestamp
+                Frames.getString(payload); // room
+                String sender = Frames.getString(payload);
+                System.out.println("[" + sender + "]: " + Frames.getString(payload));
+            }
+            case Frames.PRESENCE -> {
+                Frames.getString(payload); // room
+                String user = Frames.getString(payload);
+                System.out.println(user + (payload.get() == 1 ? " joined the room." : " left the room."));
+            }
+            case Frames.HISTORY -> {
+                System.out.println("\n=== " + Frames.getString(payload) + " history ===");
+                for (int count = payload.getInt(); count > 0; count--) {
+                    long seq = payload.getLong();
+                    String sender = Frames.getString(payload);
+                    System.out.println("#" + seq + " [" + sender + "]: " + Frames.getString(payload));
+                }
+                System.out.println("===================");
+            }
+            case Frames.PRIVATE -> {
+                String sender = Frames.getString(payload);
+                System.out.println("[" + sender + "]: " + Frames.getString(payload));
+            }
+            default -> {
+                // HELLO, or something newer than this client
+            }
+        }
+    }
+
+    private static String readTextLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).stripTrailing();
+    }
+
+    // Called by the input loop and by the reader thread (PONG)
+    private static synchronized void send(OutputStream out, ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        out.write(bytes);
+        out.flush();
+    }
+}
@@ -0,0 +1,1022 @@
+// Cluster.java
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Cluster mode (-Dchat.clusterPort): several server processes serve one chat. Rooms, and
+// the presence directory saying which node each user is connected to, are spread over the
+// nodes by consistent hashing. A room's owner keeps its history and log, numbers its
+// messages and sends each one once to every node with members in the room, which hands
+// it to its own members. Private messages go straight to the node the other user is on, or
+// to the node owning their name, which keeps their mailbox while they are offline.
+//
+// A node is named by the host:port other nodes reach it on. Nodes find each other through
+// -Dchat.clusterSeeds and gossip the member list; each node writes to one outbound link
+// per peer and reads from the links peers open to it. When a node joins, the rooms that
+// now hash to it are handed over with their recent history. There is no replication: a
+// node that goes away takes the rooms it owned with it.
+public class Cluster {
+    // Points each node gets on the hash ring; more points spread rooms more evenly
+    static final int VIRTUAL_NODES = Integer.getInteger("chat.clusterVirtualNodes", 64);
+    // How long a request to another node may take before the client is told to retry
+    static final long CALL_TIMEOUT_MILLIS = Long.getLong("chat.clusterCallTimeoutMillis", 5000);
+    // How long a new owner holds requests for a room its old owner may still be handing over
+    private static final long HANDOFF_WAIT_MILLIS = 5000;
+    private static final long GOSSIP_MILLIS = 2000;
+    private static final int CONNECT_ATTEMPTS = 10;
+    private static final long CONNECT_RETRY_MILLIS = 500;
+    // Messages queued to a peer that stopped reading before it is dropped from the cluster
+    private static final int LINK_CAPACITY = 65536;
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    // Link messages are [byte op][int length][payload], strings as in Frames and entries as
+    // int count, count x (long seq, string sender, string body). Requests start with a call
+    // id that the REPLY carries back.
+    private static final byte HELLO = 1;          // string node
+    private static final byte MEMBERS = 2;        // int count, count x string node
+    private static final byte REPLY = 3;          // long call, answer
+    private static final byte ROOM_LIST = 10;     // long call -> int count, count x (string room, byte owned, int members)
+    private static final byte ROOM_EXISTS = 11;   // long call, string room -> byte exists
+    private static final byte ROOM_CREATE = 12;   // long call, string room, string password -> byte created
+    private static final byte ROOM_JOIN = 13;     // long call, string room, string password -> byte joined, long nextSeq, entries
+    private static final byte SUBSCRIBE = 14;     // string room
+    private static final byte UNSUBSCRIBE = 15;   // string room
+    private static final byte PUBLISH = 16;       // string room, string sender, string body, byte kind
+    private static final byte DELIVER = 17;       // string room, long seq, long timestamp, string sender, string body, byte kind
+    private static final byte HISTORY = 18;       // long call, string room, long before (-1 newest), int limit -> byte ok, long before, entries
+    private static final byte HANDOFF = 19;       // string room, string password, long nextSeq, entries, int count, count x string node
+    private static final byte REGISTER = 20;      // long call, string user -> byte registered
+    private static final byte UNREGISTER = 21;    // string user
+    private static final byte LOCATE = 22;        // long call, string user -> string node, empty when offline
+    private static final byte MAIL = 23;          // string to, string from, string body
+    private static final byte TAKE_MAIL = 24;     // long call, string user -> int count, count x (string from, string body)
+    private static final byte PRIVATE = 25;       // string to, string from, string body
+    private static final byte PRESENCE = 26;      // string user, byte online
+    private static final byte SEARCH = 27;        // long call, string room, string query, int limit -> byte ok, entries
+
+    // Kinds of published message
+    private static final byte CHAT = 0;
+    private static final byte JOINED = 1;
+    private static final byte LEFT = 2;
+
+    // A page of /history from a room's owner; entries is null if it could not be read
+    record Page(long before, List<ChatHistory.Entry> entries) {}
+
+    private record Call(String node, CompletableFuture<ByteBuffer> reply) {}
+
+    private final String self;
+    private final Map<String, Server.ChatRoom> rooms;           // the server's rooms: the ones this node owns
+    private final Map<String, Server.ClientHandler> clients;    // users connected to this node
+    private final MessageLog messageLog;                        // null without persistence
+    private final Presence presence;                            // friends' online/offline notices
+    private final DirectMessages directMessages;                // sessions here, mailboxes of the users that hash here
+
+    // Every node known to be up, this one included. Changed under the Cluster lock.
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    private volatile Ring ring;
+    private volatile Ring previousRing;
+    private volatile long handoffDeadline = 0;
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    // Rooms owned elsewhere that members here have joined. Kept once made, like rooms.
+    private final Map<String, Server.ChatRoom> replicas = new ConcurrentHashMap<>();
+    // For the users that hash to this node, the node they are connected to
+    private final Map<String, String> directory = new ConcurrentHashMap<>();
+    private final Map<Long, Call> calls = new ConcurrentHashMap<>();
+    private final AtomicLong nextCall = new AtomicLong();
+    // Requests for rooms the old owner may still be handing over, in arrival order. Guarded by itself.
+    private final Map<String, List<Runnable>> awaitingHandoff = new HashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    Cluster(String address, Map<String, Server.ChatRoom> rooms, Map<String, Server.ClientHandler> clients,
+            MessageLog messageLog, Presence presence, DirectMessages directMessages) {
+        this.self = address;
+        this.rooms = rooms;
+        this.clients = clients;
+        this.messageLog = messageLog;
+        this.presence = presence;
+        this.directMessages = directMessages;
+        members.add(self);
+        ring = Ring.of(members);
+    }
+
+    // Listens for peers and connects to the seeds (comma separated host:port)
+    void start(String seeds) throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(port(self)), Server.ACCEPT_BACKLOG);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread reader = new Thread(() -> readLink(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    System.out.println("Cluster listener stopped: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (String seed : seeds.split(",")) {
+            if (!seed.isBlank() && !seed.trim().equals(self)) {
+                link(seed.trim());
+            }
+        }
+        // Also heals nodes that dropped each other while both stayed up
+        timer.scheduleWithFixedDelay(this::gossip, GOSSIP_MILLIS, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + self + " started.");
+    }
+
+    // Whether rooms named room belong to this node
+    boolean owns(String room) {
+        return ring.owner(room).equals(self);
+    }
+
+    boolean isMember(String node) {
+        return members.contains(node);
+    }
+
+    // ---- Called by client handlers and rooms ----
+
+    // Every room in the cluster with its member count, sorted by name.
+    // Nodes that do not answer are left out rather than failing the whole list.
+    CompletableFuture<Map<String, Integer>> listRooms() {
+        List<CompletableFuture<ByteBuffer>> answers = new ArrayList<>();
+        for (String node : members) {
+            answers.add(call(node, ROOM_LIST, request -> {}).exceptionally(e -> null));
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, Integer> memberCounts = new TreeMap<>();
+            Set<String> owned = new HashSet<>();
+            for (CompletableFuture<ByteBuffer> answer : answers) {
+                ByteBuffer list = answer.join();
+                if (list == null) {
+                    continue;
+                }
+                for (int i = list.getInt(); i > 0; i--) {
+                    String room = Frames.getString(list);
+                    if (list.get() != 0) {
+                        owned.add(room);
+                    }
+                    memberCounts.merge(room, list.getInt(), Integer::sum);
+                }
+            }
+            memberCounts.keySet().retainAll(owned);
+            return memberCounts;
+        });
+    }
+
+    CompletableFuture<Boolean> roomExists(String room) {
+        return call(ring.owner(room), ROOM_EXISTS, request -> request.string(room)).thenApply(answer -> answer.get() != 0);
+    }
+
+    // The local copy of a room another node owns
+    Server.ChatRoom replica(String room) {
+        return replicas.computeIfAbsent(room, name -> {
+            Server.ChatRoom replica = new Server.ChatRoom(name, "");
+            replica.remote = true;
+            return replica;
+        });
+    }
+
+    // Checks the password with the owner, which starts sending the room's messages here and
+    // answers with its recent history (loaded into the replica). The caller joins the replica
+    // if this completes with true, then calls joinFinished either way.
+    CompletableFuture<Boolean> join(Server.ChatRoom replica, String password) {
+        return subscribing(replica, ROOM_JOIN, password).thenApply(answer -> {
+            if (answer.get() == 0) {
+                return false;
+            }
+            long nextSeq = answer.getLong();
+            List<ChatHistory.Entry> recent = entries(answer);
+            replica.lock.lock();
+            try {
+                replica.password = password;
+                if (nextSeq >= replica.nextSeq()) {
+                    replica.history.restore(nextSeq, recent);
+                }
+            } finally {
+                replica.lock.unlock();
+            }
+            return true;
+        });
+    }
+
+    // Creates the room on its owner. Same contract as join.
+    CompletableFuture<Boolean> create(Server.ChatRoom replica, String password) {
+        return subscribing(replica, ROOM_CREATE, password).thenApply(answer -> {
+            if (answer.get() == 0) {
+                return false;
+            }
+            replica.password = password;
+            return true;
+        });
+    }
+
+    // Sends a join or create while counting it as pending, so a member leaving meanwhile
+    // does not unsubscribe this node under the joiner
+    private CompletableFuture<ByteBuffer> subscribing(Server.ChatRoom replica, byte op, String password) {
+        CompletableFuture<ByteBuffer> answer;
+        replica.lock.lock();
+        try {
+            replica.pendingJoins++;
+            answer = call(ring.owner(replica.roomName), op, request -> request.string(replica.roomName).string(password));
+        } finally {
+            replica.lock.unlock();
+        }
+        // A failed call never reaches the handler's continuation
+        answer.whenComplete((result, error) -> {
+            if (error != null) {
+                joinFinished(replica);
+            }
+        });
+        return answer;
+    }
+
+    void joinFinished(Server.ChatRoom replica) {
+        replica.lock.lock();
+        try {
+            replica.pendingJoins--;
+            unsubscribe(replica);
+        } finally {
+            replica.lock.unlock();
+        }
+    }
+
+    // A member joined a remote room. Takes the room lock so it cannot pass an unsubscribe.
+    void subscribe(Server.ChatRoom replica) {
+        replica.lock.lock();
+        try {
+            send(ring.owner(replica.roomName), new Message(SUBSCRIBE).string(replica.roomName));
+        } finally {
+            replica.lock.unlock();
+        }
+    }
+
+    // A member left a remote room: stop its messages once nobody here is in it or joining it
+    void unsubscribe(Server.ChatRoom replica) {
+        replica.lock.lock();
+        try {
+            if (replica.members.isEmpty() && replica.pendingJoins == 0) {
+                send(ring.owner(replica.roomName), new Message(UNSUBSCRIBE).string(replica.roomName));
+            }
+        } finally {
+            replica.lock.unlock();
+        }
+    }
+
+    // Hands a message for a remote room to its owner, which numbers it and delivers it back here
+    void publish(Server.ChatRoom room, String sender, String message, Boolean joined) {
+        send(ring.owner(room.roomName), new Message(PUBLISH)
+            .string(room.roomName).string(sender).string(message).put(kind(joined)));
+    }
+
+    // Owner side: one copy of a message for each node with members in the room
+    void fanOut(Server.ChatRoom room, long seq, long timestamp, String sender, String message, Boolean joined) {
+        ByteBuffer deliver = new Message(DELIVER).string(room.roomName)
+            .putLong(seq).putLong(timestamp).string(sender).string(message).put(kind(joined)).encode();
+        for (String node : room.subscribers) {
+            send(node, deliver);
+        }
+    }
+
+    CompletableFuture<Page> history(String room, long before, int limit) {
+        return call(ring.owner(room), HISTORY, request -> request.string(room).putLong(before).putInt(limit))
+            .thenApply(answer -> answer.get() == 0 ? new Page(before, null) : new Page(answer.getLong(), entries(answer)));
+    }
+
+    // /search on a room's owner; completes with null if the owner could not read the matches
+    CompletableFuture<List<ChatHistory.Entry>> search(String room, String query, int limit) {
+        return call(ring.owner(room), SEARCH, request -> request.string(room).string(query).putInt(limit))
+            .thenApply(answer -> answer.get() == 0 ? null : entries(answer));
+    }
+
+    // False if the user is connected to another node. If the directory cannot be asked,
+    // the login goes ahead.
+    CompletableFuture<Boolean> register(String user) {
+        return call(ring.owner(user), REGISTER, request -> request.string(user))
+            .thenApply(answer -> answer.get() != 0)
+            .exceptionally(e -> true);
+    }
+
+    void unregister(String user) {
+        send(ring.owner(user), new Message(UNREGISTER).string(user));
+    }
+
+    // The node user is connected to, null if offline or connected here
+    CompletableFuture<String> locate(String user) {
+        return call(ring.owner(user), LOCATE, request -> request.string(user)).thenApply(answer -> {
+            String node = Frames.getString(answer);
+            return node.isEmpty() || node.equals(self) ? null : node;
+        });
+    }
+
+    // A private message for a user not logged in here. Sent straight to node if the user was
+    // found there; otherwise, or if they have left it since, the node owning the user's name
+    // passes it on to wherever they are or keeps it in their mailbox.
+    void sendPrivate(String node, String to, String from, String body) {
+        if (node != null && members.contains(node)) {
+            send(node, new Message(PRIVATE).string(to).string(from).string(body));
+        } else {
+            send(ring.owner(to), new Message(MAIL).string(to).string(from).string(body));
+        }
+    }
+
+    // Mail kept for user by the node owning their name, emptied as it is handed over
+    CompletableFuture<List<DirectMessages.Mail>> takeMail(String user) {
+        String owner = ring.owner(user);
+        if (owner.equals(self)) {
+            return CompletableFuture.completedFuture(List.of()); // already taken at login
+        }
+        return call(owner, TAKE_MAIL, request -> request.string(user)).thenApply(answer -> {
+            int count = answer.getInt();
+            List<DirectMessages.Mail> mail = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                mail.add(new DirectMessages.Mail(Frames.getString(answer), Frames.getString(answer)));
+            }
+            return mail;
+        });
+    }
+
+    // A user here came online or went offline (after Presence's debounce); any node may have
+    // followers, so every node is told
+    void presenceChanged(String user, boolean online) {
+        ByteBuffer change = new Message(PRESENCE).string(user).put((byte) (online ? 1 : 0)).encode();
+        for (String node : members) {
+            if (!node.equals(self)) {
+                send(node, change);
+            }
+        }
+    }
+
+    // ---- Requests from other nodes ----
+
+    private void receive(String peer, byte op, ByteBuffer in) {
+        switch (op) {
+            case MEMBERS -> {
+                List<String> nodes = new ArrayList<>();
+                for (int i = in.getInt(); i > 0; i--) {
+                    nodes.add(Frames.getString(in));
+                }
+                for (String node : nodes) {
+                    addMember(node);
+                }
+            }
+            case REPLY -> {
+                Call call = calls.remove(in.getLong());
+                if (call != null) {
+                    call.reply().complete(in);
+                }
+            }
+            case ROOM_LIST -> send(peer, roomList(answer(in.getLong())));
+            case ROOM_EXISTS -> {
+                long call = in.getLong();
+                String room = Frames.getString(in);
+                whenPresent(room, () -> send(peer, answer(call).put(rooms.containsKey(room) ? 1 : 0)));
+            }
+            case ROOM_CREATE -> {
+                long call = in.getLong();
+                String room = Frames.getString(in);
+                String password = Frames.getString(in);
+                whenPresent(room, () -> {
+                    Server.ChatRoom created = Server.createRoom(room, password, null);
+                    if (created != null) {
+                        created.subscribers.add(peer);
+                    }
+                    send(peer, answer(call).put(created != null ? 1 : 0));
+                });
+            }
+            case ROOM_JOIN -> {
+                long call = in.getLong();
+                String room = Frames.getString(in);
+                String password = Frames.getString(in);
+                whenPresent(room, () -> send(peer, onJoin(peer, call, rooms.get(room), password)));
+            }
+            case SUBSCRIBE, UNSUBSCRIBE -> {
+                String room = Frames.getString(in);
+                whenPresent(room, () -> {
+                    Server.ChatRoom owned = rooms.get(room);
+                    if (owned != null && op == SUBSCRIBE) {
+                        owned.subscribers.add(peer);
+                    } else if (owned != null) {
+                        owned.subscribers.remove(peer);
+                    }
+                });
+            }
+            case PUBLISH -> {
+                ByteBuffer original = in.duplicate();
+                String room = Frames.getString(in);
+                String sender = Frames.getString(in);
+                String body = Frames.getString(in);
+                Boolean joined = joined(in.get());
+                whenPresent(room, () -> {
+                    Server.ChatRoom owned = rooms.get(room);
+                    if (owned != null) {
+                        owned.publish(body, sender, joined);
+                    } else if (!owns(room)) {
+                        // The room moved on while this was in flight
+                        send(ring.owner(room), new Message(PUBLISH).bytes(original));
+                    }
+                });
+            }
+            case DELIVER -> {
+                Server.ChatRoom replica = replicas.get(Frames.getString(in));
+                long seq = in.getLong();
+                long timestamp = in.getLong();
+                String sender = Frames.getString(in);
+                String body = Frames.getString(in);
+                if (replica != null) {
+                    replica.deliver(seq, timestamp, sender, body, joined(in.get()));
+                }
+            }
+            case HISTORY -> {
+                long call = in.getLong();
+                String room = Frames.getString(in);
+                long before = in.getLong();
+                int limit = in.getInt();
+                whenPresent(room, () -> send(peer, onHistory(call, rooms.get(room), before, limit)));
+            }
+            case SEARCH -> {
+                long call = in.getLong();
+                String room = Frames.getString(in);
+                String query = Frames.getString(in);
+                int limit = in.getInt();
+                whenPresent(room, () -> send(peer, onSearch(call, rooms.get(room), query, limit)));
+            }
+            case HANDOFF -> onHandoff(in);
+            case REGISTER -> {
+                long call = in.getLong();
+                String user = Frames.getString(in);
+                // A node that went away no longer holds its users
+                String node = directory.compute(user, (name, current) ->
+                    current == null || !members.contains(current) ? peer : current);
+                send(peer, answer(call).put(node.equals(peer) ? 1 : 0));
+            }
+            case UNREGISTER -> directory.remove(Frames.getString(in), peer);
+            case LOCATE -> {
+                long call = in.getLong();
+                String node = directory.get(Frames.getString(in));
+                send(peer, answer(call).string(node != null ? node : ""));
+            }
+            case MAIL -> {
+                String to = Frames.getString(in);
+                String from = Frames.getString(in);
+                String body = Frames.getString(in);
+                // Not sent back to a node that just failed to deliver it: the user is not
+                // there yet, and will take their mailbox once they are
+                String node = directory.get(to);
+                if (node != null && !node.equals(self) && !node.equals(peer) && members.contains(node)) {
+                    send(node, new Message(PRIVATE).string(to).string(from).string(body));
+                } else {
+                    directMessages.send(to, from, body);
+                }
+            }
+            case TAKE_MAIL -> {
+                long call = in.getLong();
+                List<DirectMessages.Mail> mail = directMessages.take(Frames.getString(in));
+                Message answer = answer(call).putInt(mail.size());
+                for (DirectMessages.Mail message : mail) {
+                    answer.string(message.from()).string(message.body());
+                }
+                send(peer, answer);
+            }
+            case PRIVATE -> {
+                String to = Frames.getString(in);
+                String from = Frames.getString(in);
+                String body = Frames.getString(in);
+                if (!directMessages.deliver(to, from, body)) {
+                    // Gone since it was located
+                    send(ring.owner(to), new Message(MAIL).string(to).string(from).string(body));
+                }
+            }
+            case PRESENCE -> presence.notifyFollowers(Frames.getString(in), in.get() != 0);
+            default -> throw new IllegalArgumentException("Unknown cluster message " + op);
+        }
+    }
+
+    // ROOM_LIST answer: the rooms owned here, and the members here of every room
+    private Message roomList(Message answer) {
+        List<Server.ChatRoom> listed = new ArrayList<>(rooms.values());
+        int owned = listed.size();
+        listed.addAll(replicas.values());
+        answer.putInt(listed.size());
+        for (int i = 0; i < listed.size(); i++) {
+            answer.string(listed.get(i).roomName).put(i < owned ? 1 : 0).putInt(listed.get(i).memberCount());
+        }
+        return answer;
+    }
+
+    private Message onJoin(String peer, long call, Server.ChatRoom room, String password) {
+        Message answer = answer(call);
+        if (room == null || !room.password.equals(password)) {
+            return answer.put(0);
+        }
+        // Under the lock no message is numbered between the snapshot and the subscription
+        room.lock.lock();
+        try {
+            room.subscribers.add(peer);
+            return answer.put(1).putLong(room.nextSeq()).entries(room.history.snapshot());
+        } finally {
+            room.lock.unlock();
+        }
+    }
+
+    private Message onHistory(long call, Server.ChatRoom room, long before, int limit) {
+        Message answer = answer(call);
+        if (room == null) {
+            return answer.put(0);
+        }
+        long from = before < 0 ? room.nextSeq() : before;
+        try {
+            return answer.put(1).putLong(from).entries(room.historyBefore(from, limit));
+        } catch (IOException e) {
+            return answer.put(0);
+        }
+    }
+
+    private Message onSearch(long call, Server.ChatRoom room, String query, int limit) {
+        Message answer = answer(call);
+        if (room == null) {
+            return answer.put(0);
+        }
+        try {
+            return answer.put(1).entries(room.search(query, limit));
+        } catch (IOException e) {
+            return answer.put(0);
+        }
+    }
+
+    // A room that now hashes to this node, from its old owner
+    private void onHandoff(ByteBuffer in) {
+        String name = Frames.getString(in);
+        String password = Frames.getString(in);
+        long nextSeq = in.getLong();
+        List<ChatHistory.Entry> recent = entries(in);
+        List<String> nodes = new ArrayList<>();
+        for (int i = in.getInt(); i > 0; i--) {
+            nodes.add(Frames.getString(in));
+        }
+
+        // Members here were on the replica; it becomes the room itself
+        Server.ChatRoom room = replica(name);
+        room.lock.lock();
+        try {
+            if (rooms.containsKey(name)) {
+                System.out.println("Room " + name + " handed over twice, keeping the copy already here.");
+            } else {
+                room.password = password;
+                room.history.restore(nextSeq, recent);
+                room.subscribers.addAll(nodes);
+                room.subscribers.remove(self);
+                if (messageLog != null) {
+                    try {
+                        room.log = messageLog.createRoom(name, password, nextSeq);
+                    } catch (IOException e) {
+                        System.out.println("Room " + name + " will not be persisted: " + e.getMessage());
+                    }
+                }
+                // Searches here start from the history handed over; older messages stay with the old owner's log
+                try {
+                    room.search = SearchIndex.create(room.log, recent.isEmpty() ? nextSeq : recent.get(0).seq(),
+                        room.history.capacity());
+                    for (ChatHistory.Entry entry : recent) {
+                        if (!Server.ChatRoom.isPresence(entry.message())) {
+                            room.search.add(entry.seq(), entry.message());
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Room " + name + " will not be searchable: " + e.getMessage());
+                }
+                room.remote = false;
+                replicas.remove(name, room);
+                rooms.put(name, room);
+            }
+        } finally {
+            room.lock.unlock();
+        }
+        release(name);
+    }
+
+    // Moves a room this node no longer owns to its new owner. This node keeps it as a
+    // replica for its own members.
+    private void handOff(Server.ChatRoom room) {
+        String owner = ring.owner(room.roomName);
+        room.lock.lock();
+        try {
+            rooms.remove(room.roomName, room);
+            room.remote = true;
+            replicas.put(room.roomName, room);
+
+            List<String> nodes = new ArrayList<>(room.subscribers);
+            if (!room.members.isEmpty()) {
+                nodes.add(self);
+            }
+            room.subscribers.clear();
+            Message handoff = new Message(HANDOFF).string(room.roomName).string(room.password)
+                .putLong(room.nextSeq()).entries(room.history.snapshot()).putInt(nodes.size());
+            for (String node : nodes) {
+                handoff.string(node);
+            }
+            send(owner, handoff);
+            System.out.println("Room " + room.roomName + " handed over to " + owner + ".");
+
+            if (room.search != null) {
+                room.search.retire();
+                room.search = null;
+            }
+            if (room.log != null) {
+                room.log.retire();
+                room.log = null;
+            }
+        } catch (IOException e) {
+            System.out.println("Could not retire the log of room " + room.roomName + ": " + e.getMessage());
+        } finally {
+            room.lock.unlock();
+        }
+    }
+
+    // Runs a request for room now, or after the room arrives if its old owner may still be
+    // handing it over. Requests that arrive meanwhile queue up behind it.
+    private void whenPresent(String room, Runnable request) {
+        synchronized (awaitingHandoff) {
+            List<Runnable> waiting = awaitingHandoff.get(room);
+            if (waiting != null || (!rooms.containsKey(room) && handoffExpected(room))) {
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                    awaitingHandoff.put(room, waiting);
+                    timer.schedule(() -> release(room), HANDOFF_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                waiting.add(request);
+                return;
+            }
+        }
+        request.run();
+    }
+
+    private boolean handoffExpected(String room) {
+        Ring before = previousRing;
+        if (before == null || System.currentTimeMillis() > handoffDeadline || !owns(room)) {
+            return false;
+        }
+        String previousOwner = before.owner(room);
+        return !previousOwner.equals(self) && members.contains(previousOwner);
+    }
+
+    private void release(String room) {
+        List<Runnable> waiting;
+        synchronized (awaitingHandoff) {
+            waiting = awaitingHandoff.remove(room);
+        }
+        if (waiting != null) {
+            waiting.forEach(Runnable::run);
+        }
+    }
+
+    // ---- Membership ----
+
+    private synchronized void addMember(String node) {
+        if (!members.add(node)) {
+            return;
+        }
+        link(node);
+        System.out.println("Cluster node " + node + " joined: " + members);
+        ringChanged();
+        gossip();
+    }
+
+    // failed is the link that broke, null when the peer's own link to this node did
+    private synchronized void nodeFailed(String node, Link failed) {
+        if (failed != null && !links.remove(node, failed)) {
+            return; // an old link, the node has reconnected since
+        }
+        Link link = links.remove(node);
+        if (link != null) {
+            link.queue.close();
+        }
+        if (!members.remove(node)) {
+            return;
+        }
+        System.out.println("Cluster node " + node + " left: " + members);
+        for (Map.Entry<Long, Call> call : calls.entrySet()) {
+            if (call.getValue().node().equals(node) && calls.remove(call.getKey(), call.getValue())) {
+                call.getValue().reply().completeExceptionally(new IOException("Cluster node " + node + " left"));
+            }
+        }
+        directory.values().removeIf(node::equals);
+        for (Server.ChatRoom room : rooms.values()) {
+            room.subscribers.remove(node);
+        }
+        ringChanged();
+    }
+
+    // Rooms and directory entries that hash elsewhere now move there
+    private void ringChanged() {
+        previousRing = ring;
+        ring = Ring.of(members);
+        handoffDeadline = System.currentTimeMillis() + HANDOFF_WAIT_MILLIS;
+
+        for (Server.ChatRoom room : rooms.values()) {
+            if (!owns(room.roomName)) {
+                handOff(room);
+            }
+        }
+        directory.keySet().removeIf(user -> !ring.owner(user).equals(self));
+        for (String user : directMessages.mailboxUsers()) {
+            String owner = ring.owner(user);
+            if (!owner.equals(self)) {
+                for (DirectMessages.Mail mail : directMessages.take(user)) {
+                    send(owner, new Message(MAIL).string(user).string(mail.from()).string(mail.body()));
+                }
+            }
+        }
+        for (String user : clients.keySet()) {
+            register(user);
+        }
+    }
+
+    private void gossip() {
+        Message list = new Message(MEMBERS).putInt(members.size());
+        for (String node : members) {
+            list.string(node);
+        }
+        ByteBuffer encoded = list.encode();
+        for (Link link : links.values()) {
+            link.queue.offer(encoded);
+        }
+    }
+
+    // ---- Links ----
+
+    private CompletableFuture<ByteBuffer> call(String node, byte op, Consumer<Message> fields) {
+        long id = nextCall.incrementAndGet();
+        Message request = new Message(op).putLong(id);
+        fields.accept(request);
+        CompletableFuture<ByteBuffer> reply = new CompletableFuture<>();
+        calls.put(id, new Call(node, reply));
+        reply.orTimeout(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((answer, error) -> calls.remove(id));
+        send(node, request);
+        return reply;
+    }
+
+    private static Message answer(long call) {
+        return new Message(REPLY).putLong(call);
+    }
+
+    private void send(String node, Message message) {
+        send(node, message.encode());
+    }
+
+    // Messages to this node are handled right away, on the calling thread
+    private void send(String node, ByteBuffer message) {
+        if (node.equals(self)) {
+            ByteBuffer in = message.duplicate();
+            byte op = in.get();
+            in.getInt();
+            receive(self, op, in.slice());
+        } else if (members.contains(node)) {
+            link(node).queue.offer(message);
+        }
+    }
+
+    private Link link(String node) {
+        return links.computeIfAbsent(node, Link::new);
+    }
+
+    // The outbound connection to one peer. Only this node writes to it, starting with HELLO.
+    private class Link implements Runnable {
+        final String node;
+        final OutboundQueue queue = new OutboundQueue(LINK_CAPACITY, OutboundQueue.Policy.DISCONNECT, null);
+
+        Link(String node) {
+            this.node = node;
+            queue.offer(new Message(HELLO).string(self).encode());
+            Thread writer = new Thread(this, "cluster-out-" + node);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = connect()) {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+                ByteBuffer message;
+                while ((message = queue.take()) != null) {
+                    do {
+                        // Shared with other links, so read without moving its position
+                        out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+                    } while ((message = queue.poll()) != null);
+                    out.flush();
+                    OutboundQueue.socketWrites.increment();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Unreachable or gone, handled below
+            }
+            nodeFailed(node, this);
+        }
+
+        // Peers may still be starting, so a refused connection is retried for a while
+        private Socket connect() throws IOException, InterruptedException {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(host(node), port(node)), (int) CALL_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                } catch (IOException e) {
+                    if (attempt == CONNECT_ATTEMPTS) {
+                        System.out.println("Cannot reach cluster node " + node + ": " + e.getMessage());
+                        throw e;
+                    }
+                    Thread.sleep(CONNECT_RETRY_MILLIS);
+                }
+            }
+        }
+    }
+
+    // Reads what a peer sends on the link it opened to this node
+    private void readLink(Socket socket) {
+        String peer = null;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536))) {
+            while (true) {
+                byte op = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Bad cluster message length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                ByteBuffer message = ByteBuffer.wrap(payload);
+                if (peer == null) {
+                    if (op != HELLO) {
+                        throw new IOException("Cluster link did not start with HELLO");
+                    }
+                    peer = Frames.getString(message);
+                }
+                // Also brings back a node this one wrongly gave up on
+                if (!members.contains(peer)) {
+                    addMember(peer);
+                }
+                if (op != HELLO) {
+                    receive(peer, op, message);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The peer went away or sent something malformed
+        }
+        if (peer != null) {
+            nodeFailed(peer, null);
+        }
+    }
+
+    private static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    private static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    private static byte kind(Boolean joined) {
+        return joined == null ? CHAT : joined ? JOINED : LEFT;
+    }
+
+    private static Boolean joined(byte kind) {
+        return kind == CHAT ? null : kind == JOINED;
+    }
+
+    private static List<ChatHistory.Entry> entries(ByteBuffer in) {
+        int count = in.getInt();
+        List<ChatHistory.Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new ChatHistory.Entry(in.getLong(), Frames.getString(in), Frames.getString(in)));
+        }
+        return entries;
+    }
+
+    // One link message being built
+    private static final class Message {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+        Message(byte op) {
+            bytes.write(op);
+            putInt(0); // length, set by encode
+        }
+
+        Message put(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        Message putInt(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes.write(value >>> shift);
+            }
+            return this;
+        }
+
+        Message putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        Message string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length > Frames.MAX_STRING_BYTES) {
+                throw new IllegalArgumentException("String field too long: " + utf8.length + " bytes");
+            }
+            bytes.write(utf8.length >>> 8);
+            bytes.write(utf8.length);
+            bytes.writeBytes(utf8);
+            return this;
+        }
+
+        Message bytes(ByteBuffer payload) {
+            bytes.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            return this;
+        }
+
+        Message entries(List<ChatHistory.Entry> entries) {
+            putInt(entries.size());
+            for (ChatHistory.Entry entry : entries) {
+                putLong(entry.seq()).string(entry.username()).string(entry.message());
+            }
+            return this;
+        }
+
+        ByteBuffer encode() {
+            ByteBuffer message = ByteBuffer.wrap(bytes.toByteArray());
+            return message.putInt(1, message.capacity() - Frames.HEADER_BYTES);
+        }
+    }
+
+    // Consistent hash ring: each node has VIRTUAL_NODES points, and a key belongs to the
+    // node with the first point at or after the key's hash
+    private record Ring(long[] points, String[] nodes) {
+        static Ring of(Collection<String> members) {
+            TreeMap<Long, String> sorted = new TreeMap<>();
+            for (String node : members) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    sorted.put(hash(node + "#" + i), node);
+                }
+            }
+            long[] points = new long[sorted.size()];
+            String[] nodes = new String[sorted.size()];
+            int i = 0;
+            for (Map.Entry<Long, String> point : sorted.entrySet()) {
+                points[i] = point.getKey();
+                nodes[i++] = point.getValue();
+            }
+            return new Ring(points, nodes);
+        }
+
+        String owner(String key) {
+            int i = Arrays.binarySearch(points, hash(key));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return nodes[i == points.length ? 0 : i];
+        }
+
+        // FNV-1a spreads short, similar keys poorly over the high bits, so mix it (murmur3 finalizer)
+        private static long hash(String key) {
+            long h = UserStore.hash(key);
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
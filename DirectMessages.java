@@ -0,0 +1,409 @@
+// DirectMessages.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Private messages between friends. Every user has an inbox: the session they are logged in
+// with, or while they are offline a mailbox of up to MAILBOX_CAPACITY messages (the oldest
+// are dropped). Sending picks the recipient's session or puts the message in the mailbox in
+// one step on the inbox, and login takes the mailbox in the same step, so a message sent
+// while its recipient logs in is never left behind. The message is queued to the session
+// after that step, never inside it, since a queue may close its connection when full.
+//
+// Until the session has queued its mailbox (see open), newer messages are held back in the
+// inbox, so the mailbox arrives as one batch ahead of anything newer, even when in cluster
+// mode part of it comes from another node.
+//
+// With a file, mailboxes are journaled to it: records [int length][int crc32][byte type]
+// [user][from][body] (DataOutput UTF strings), MAIL adding a message and TAKEN emptying the
+// user's mailbox. Like UserStore the journal is written behind by a background thread with
+// one fsync per batch, and rewritten with only the undelivered mail once most of it is stale.
+public class DirectMessages {
+    static final int MAILBOX_CAPACITY = Integer.getInteger("chat.mailboxCapacity", 100);
+    private static final byte MAIL = 1;
+    private static final byte TAKEN = 2;
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    record Mail(String from, String body) {}
+
+    private static final class Inbox {
+        Server.ClientHandler session = null; // null while offline
+        boolean open = false;                // the session has queued its mailbox
+        final ArrayDeque<Mail> held = new ArrayDeque<>(); // for the session, until it is open
+        final ArrayDeque<Mail> mailbox = new ArrayDeque<>();
+    }
+
+    // Inboxes are only changed inside compute(), which makes each one its own lock. An inbox
+    // with no session and no mail is removed.
+    private final ConcurrentHashMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    private final AtomicLong mailCount = new AtomicLong();
+
+    private final Path path; // null when nothing is persisted
+    private FileChannel channel;
+    private long fileSize = 0;
+    private long fileRecords = 0;
+    // Records not yet written. Changes take the read lock while they update an inbox and
+    // queue their record; compaction takes the write lock, so what it writes out is exactly
+    // the inboxes plus everything queued.
+    private final ConcurrentLinkedQueue<byte[]> journal = new ConcurrentLinkedQueue<>();
+    private final ReentrantReadWriteLock journalLock = new ReentrantReadWriteLock();
+
+    DirectMessages(Path path) throws IOException {
+        this.path = path;
+        if (path == null) {
+            return;
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+        channel.truncate(fileSize);
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-writer");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleWithFixedDelay(this::flushQuietly, UserStore.FLUSH_MILLIS, UserStore.FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Queues a message to the recipient if they are logged in here. Returns false, and keeps
+    // nothing, if they are not.
+    boolean deliver(String to, String from, String body) {
+        boolean[] delivered = {false};
+        Server.ClientHandler[] target = {null};
+        inboxes.computeIfPresent(to, (name, inbox) -> {
+            if (inbox.session != null) {
+                target[0] = pick(inbox, from, body);
+                delivered[0] = true;
+            }
+            return inbox;
+        });
+        if (target[0] != null) {
+            target[0].deliverPrivate(from, body);
+        }
+        return delivered[0];
+    }
+
+    // Delivers the message, or keeps it for the recipient's next login
+    void send(String to, String from, String body) {
+        Server.ClientHandler[] target = {null};
+        change(() -> inboxes.compute(to, (name, inbox) -> {
+            if (inbox != null && inbox.session != null) {
+                target[0] = pick(inbox, from, body);
+                return inbox;
+            }
+            if (inbox == null) {
+                inbox = new Inbox();
+            }
+            keep(to, inbox, new Mail(from, body));
+            return inbox;
+        }));
+        if (target[0] != null) {
+            target[0].deliverPrivate(from, body);
+        }
+    }
+
+    // Inside compute, for an inbox with a session: the session to queue the message to once
+    // compute returns, or null if it is held back until the session is open
+    private static Server.ClientHandler pick(Inbox inbox, String from, String body) {
+        if (inbox.open) {
+            return inbox.session;
+        }
+        inbox.held.add(new Mail(from, body));
+        return null;
+    }
+
+    // Inside compute: puts a message in the mailbox, dropping the oldest if it is full
+    private void keep(String user, Inbox inbox, Mail mail) {
+        if (inbox.mailbox.size() == MAILBOX_CAPACITY) {
+            inbox.mailbox.poll();
+            Metrics.mailboxDropped.increment();
+        } else {
+            mailCount.incrementAndGet();
+        }
+        inbox.mailbox.add(mail);
+        Metrics.mailboxStored.increment();
+        record(MAIL, user, mail.from(), mail.body());
+    }
+
+    // Marks session's user as logged in here and returns their mailbox, which is emptied.
+    // Messages sent from now on are held back until the session calls open.
+    List<Mail> login(Server.ClientHandler session, String user) {
+        List<Mail> mail = new ArrayList<>();
+        change(() -> inboxes.compute(user, (name, inbox) -> {
+            if (inbox == null) {
+                inbox = new Inbox();
+            }
+            // Whatever was held for a session this one replaces is older than any new message
+            if (!inbox.held.isEmpty()) {
+                mail.addAll(inbox.held);
+                inbox.held.clear();
+            }
+            takeMailbox(user, inbox, mail);
+            inbox.session = session;
+            inbox.open = false;
+            return inbox;
+        }));
+        return mail;
+    }
+
+    // Called once the session has queued its mailbox: queues what was held back meanwhile,
+    // oldest first, and lets messages through directly from then on
+    void open(Server.ClientHandler session, String user) {
+        while (true) {
+            List<Mail> held = new ArrayList<>();
+            inboxes.computeIfPresent(user, (name, inbox) -> {
+                if (inbox.session == session) {
+                    if (inbox.held.isEmpty()) {
+                        inbox.open = true;
+                    } else {
+                        held.addAll(inbox.held);
+                        inbox.held.clear();
+                    }
+                }
+                return inbox;
+            });
+            if (held.isEmpty()) {
+                return;
+            }
+            for (Mail mail : held) {
+                session.deliverPrivate(mail.from(), mail.body());
+            }
+        }
+    }
+
+    void logout(Server.ClientHandler session, String user) {
+        change(() -> inboxes.computeIfPresent(user, (name, inbox) -> {
+            if (inbox.session == session) {
+                inbox.session = null;
+                inbox.open = false;
+                // Never queued to the session, so kept for the next login
+                for (Mail mail : inbox.held) {
+                    keep(user, inbox, mail);
+                }
+                inbox.held.clear();
+            }
+            return inbox.session == null && inbox.mailbox.isEmpty() ? null : inbox;
+        }));
+    }
+
+    // Empties a mailbox kept here for a user logged in elsewhere (cluster mode)
+    List<Mail> take(String user) {
+        List<Mail> mail = new ArrayList<>();
+        change(() -> inboxes.computeIfPresent(user, (name, inbox) -> {
+            takeMailbox(user, inbox, mail);
+            return inbox.session == null ? null : inbox;
+        }));
+        return mail;
+    }
+
+    // Users with mail waiting here
+    List<String> mailboxUsers() {
+        List<String> users = new ArrayList<>();
+        inboxes.forEach((user, inbox) -> {
+            if (!inbox.mailbox.isEmpty()) {
+                users.add(user);
+            }
+        });
+        return users;
+    }
+
+    private void takeMailbox(String user, Inbox inbox, List<Mail> into) {
+        if (inbox.mailbox.isEmpty()) {
+            return;
+        }
+        into.addAll(inbox.mailbox);
+        mailCount.addAndGet(-inbox.mailbox.size());
+        inbox.mailbox.clear();
+        record(TAKEN, user, "", "");
+    }
+
+    // A mailbox as one message: the text lines or PRIVATE frames back to back
+    static ByteBuffer batch(List<Mail> mail, boolean binary) {
+        if (binary) {
+            List<ByteBuffer> frames = new ArrayList<>(mail.size());
+            int length = 0;
+            for (Mail message : mail) {
+                ByteBuffer frame = Frames.privateMessage(message.from(), message.body());
+                frames.add(frame);
+                length += frame.remaining();
+            }
+            ByteBuffer batch = ByteBuffer.allocate(length);
+            for (ByteBuffer frame : frames) {
+                batch.put(frame);
+            }
+            return batch.flip().asReadOnlyBuffer();
+        }
+        StringBuilder text = new StringBuilder();
+        text.append("\n=== ").append(mail.size()).append(mail.size() == 1 ? " message" : " messages")
+            .append(" while you were away ===\n");
+        for (Mail message : mail) {
+            text.append("[").append(message.from()).append("]: ").append(message.body()).append("\n");
+        }
+        text.append("===================\n");
+        return OutboundQueue.encode(text.toString());
+    }
+
+    // ---- Journal ----
+
+    private void change(Runnable update) {
+        if (path == null) {
+            update.run();
+            return;
+        }
+        journalLock.readLock().lock();
+        try {
+            update.run();
+        } finally {
+            journalLock.readLock().unlock();
+        }
+    }
+
+    private void record(byte type, String user, String from, String body) {
+        if (path == null) {
+            return;
+        }
+        try {
+            journal.add(encode(type, user, from, body));
+        } catch (IOException e) {
+            // A string too long for writeUTF; the message is still delivered from memory
+            System.out.println("Could not journal mail for " + user + ": " + e.getMessage());
+        }
+    }
+
+    // Writes every queued record and fsyncs once
+    synchronized void flush() throws IOException {
+        if (path == null || journal.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long records = 0;
+        byte[] record;
+        while ((record = journal.poll()) != null) {
+            bytes.write(record);
+            records++;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, fileSize + buffer.position());
+        }
+        channel.force(false);
+        fileSize += buffer.limit();
+        fileRecords += records;
+
+        if (fileSize > MIN_COMPACT_BYTES && fileRecords > 2 * mailCount.get()) {
+            compact();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.out.println("Could not write mailboxes " + path + ": " + e.getMessage());
+        }
+    }
+
+    // Rewrites the journal with one MAIL record per undelivered message
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        journalLock.writeLock().lock();
+        try {
+            journal.clear(); // already reflected in the inboxes
+            long size = 0;
+            long records = 0;
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<String, Inbox> entry : inboxes.entrySet()) {
+                    for (Mail mail : entry.getValue().mailbox) {
+                        ByteBuffer record = ByteBuffer.wrap(encode(MAIL, entry.getKey(), mail.from(), mail.body()));
+                        while (record.hasRemaining()) {
+                            size += out.write(record);
+                        }
+                        records++;
+                    }
+                }
+                out.force(false);
+            }
+            channel.close();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileSize = size;
+            fileRecords = records;
+        } finally {
+            journalLock.writeLock().unlock();
+        }
+    }
+
+    // Replays the journal into the mailboxes; a torn last record is cut off by the caller
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            long offset = 0;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 5 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                try {
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body, 4, body.length - 4);
+                if ((int) crc.getValue() != ByteBuffer.wrap(body).getInt()) {
+                    break;
+                }
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(body, 4, body.length - 4));
+                byte type = data.readByte();
+                String user = data.readUTF();
+                String from = data.readUTF();
+                String text = data.readUTF();
+                Inbox inbox = inboxes.computeIfAbsent(user, name -> new Inbox());
+                if (type == MAIL) {
+                    if (inbox.mailbox.size() == MAILBOX_CAPACITY) {
+                        inbox.mailbox.poll();
+                    }
+                    inbox.mailbox.add(new Mail(from, text));
+                } else {
+                    inbox.mailbox.clear();
+                }
+                offset += 4 + length;
+                fileRecords++;
+            }
+            fileSize = offset;
+        }
+        inboxes.values().removeIf(inbox -> inbox.mailbox.isEmpty());
+        for (Inbox inbox : inboxes.values()) {
+            mailCount.addAndGet(inbox.mailbox.size());
+        }
+    }
+
+    private static byte[] encode(byte type, String user, String from, String body) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(type);
+        data.writeUTF(user);
+        data.writeUTF(from);
+        data.writeUTF(body);
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+        record.putInt(4 + bytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(bytes);
+        return record.array();
+    }
+}
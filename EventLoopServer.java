@@ -0,0 +1,345 @@
+// EventLoopServer.java
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking server mode: a small pool of selector threads drives every connection,
+// so idle users cost a few hundred bytes instead of a whole thread stack.
+public class EventLoopServer {
+    // Longest line a client may send before we drop the connection
+    static final int MAX_LINE_BYTES = 8192;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    EventLoopServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "event-loop-" + i).start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            // Accepted sockets inherit the receive buffer, and it has to be set before bind to take effect
+            if (Server.RECEIVE_BUFFER_BYTES > 0) {
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, Server.RECEIVE_BUFFER_BYTES);
+            }
+            serverChannel.bind(new InetSocketAddress(port), Server.ACCEPT_BACKLOG);
+            System.out.println("Server started on port " + port + " (nio, " + loops.length + " event loops)...");
+
+            // Accept on this thread and hand connections out round-robin
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Server.tuneSocket(channel.socket());
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    // One selector thread and the connections it owns
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Reads are handled one at a time on this thread, so they can share one buffer
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        // Writes are too: queued messages are copied in and sent in one call
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.handler.start();
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        // Runs a task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flushPending(writeBuffer);
+                    }
+                }
+            }
+        }
+    }
+
+    // Per-connection line or Frames framing, plus draining of the handler's outbound queue
+    static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Server.ClientHandler handler;
+        private SelectionKey key;
+
+        // Bytes of a line that has not seen its '\n' yet, or of an incomplete frame
+        private byte[] partialLine = new byte[0];
+        private int partialLength = 0;
+        // Decided by the first byte the client sends
+        private boolean protocolKnown = false;
+        private boolean framed = false;
+
+        // Message taken from the outbound queue but not fully copied out yet. It may be
+        // shared with other connections, so only its own offset here moves.
+        private ByteBuffer current = null;
+        private int currentOffset = 0;
+        // Bytes the socket would not take last time, sent before anything else
+        private byte[] unsent = null;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private boolean closed = false;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.handler = new Server.ClientHandler(this::scheduleFlush, loop::execute);
+        }
+
+        // Splits incoming bytes into lines and feeds them to the handler
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+
+            buffer.flip();
+            if (!protocolKnown && buffer.hasRemaining()) {
+                // A binary client's first byte is a HELLO frame, a text client never sends a 0 byte
+                protocolKnown = true;
+                framed = buffer.get(buffer.position()) == Frames.HELLO;
+            }
+            boolean ok = framed ? readFrames(buffer) : readLines(buffer);
+            if (!ok) {
+                closeNow();
+                return;
+            }
+
+            // Keep idle connections small once their line has been consumed
+            if (partialLength == 0 && partialLine.length > 256) {
+                partialLine = new byte[0];
+            }
+        }
+
+        // Returns false if the client sent a line that is too long
+        private boolean readLines(ByteBuffer buffer) {
+            while (buffer.hasRemaining() && !handler.isClosed()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int length = partialLength;
+                    if (length > 0 && partialLine[length - 1] == '\r') {
+                        length--;
+                    }
+                    String line = new String(partialLine, 0, length, StandardCharsets.UTF_8);
+                    partialLength = 0;
+                    handler.onLine(line);
+                } else if (!appendPartial(b, MAX_LINE_BYTES)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Returns false if the client sent a frame that is too long
+        private boolean readFrames(ByteBuffer buffer) {
+            while (buffer.hasRemaining() && !handler.isClosed()) {
+                // Frame entirely inside the read buffer: hand the payload over in place
+                if (partialLength == 0 && buffer.remaining() >= Frames.HEADER_BYTES) {
+                    int length = buffer.getInt(buffer.position() + 1);
+                    if (length < 0 || length > Frames.MAX_PAYLOAD_BYTES) {
+                        return false;
+                    }
+                    if (buffer.remaining() >= Frames.HEADER_BYTES + length) {
+                        byte opcode = buffer.get();
+                        int start = buffer.position() + 4;
+                        int limit = buffer.limit();
+                        buffer.position(start).limit(start + length);
+                        handler.onFrame(opcode, buffer);
+                        buffer.limit(limit).position(start + length);
+                        continue;
+                    }
+                }
+
+                // Otherwise collect it across reads: the header, then exactly the rest of the frame
+                int frameLength = Frames.HEADER_BYTES + (partialLength >= Frames.HEADER_BYTES ? partialPayloadLength() : 0);
+                int n = Math.min(buffer.remaining(), frameLength - partialLength);
+                if (partialLine.length < partialLength + n) {
+                    partialLine = Arrays.copyOf(partialLine, Math.max(64, partialLength + n));
+                }
+                buffer.get(partialLine, partialLength, n);
+                partialLength += n;
+                if (partialLength < Frames.HEADER_BYTES) {
+                    continue;
+                }
+                int length = partialPayloadLength();
+                if (length < 0 || length > Frames.MAX_PAYLOAD_BYTES) {
+                    return false;
+                }
+                if (partialLength == Frames.HEADER_BYTES + length) {
+                    partialLength = 0;
+                    handler.onFrame(partialLine[0], ByteBuffer.wrap(partialLine, Frames.HEADER_BYTES, length));
+                }
+            }
+            return true;
+        }
+
+        private int partialPayloadLength() {
+            return (partialLine[1] & 0xFF) << 24 | (partialLine[2] & 0xFF) << 16
+                | (partialLine[3] & 0xFF) << 8 | (partialLine[4] & 0xFF);
+        }
+
+        private boolean appendPartial(byte b, int max) {
+            if (partialLength == max) {
+                return false;
+            }
+            if (partialLength == partialLine.length) {
+                partialLine = Arrays.copyOf(partialLine, Math.min(max, Math.max(64, partialLength * 2)));
+            }
+            partialLine[partialLength++] = b;
+            return true;
+        }
+
+        // Called from any thread when the outbound queue has something for us
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> flushPending(loop.writeBuffer));
+            }
+        }
+
+        // Event loop thread only
+        void flushPending(ByteBuffer buffer) {
+            flushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+
+            OutboundQueue outbound = handler.outbound;
+            if (outbound.isAborted()) {
+                // Too slow to keep up, drop the connection without draining
+                closeNow();
+                return;
+            }
+
+            try {
+                // Everything queued since the last tick goes out in as few writes as the buffer allows
+                while (fill(buffer, outbound)) {
+                    buffer.flip();
+                    channel.write(buffer);
+                    OutboundQueue.socketWrites.increment();
+                    if (buffer.hasRemaining()) {
+                        // Socket is full, keep the rest and wait until the selector says it is writable again
+                        unsent = new byte[buffer.remaining()];
+                        buffer.get(unsent);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+
+            if (outbound.isFinished()) {
+                closeNow();
+            }
+        }
+
+        // Copies unsent bytes and queued messages into the loop's write buffer.
+        // Returns false if there was nothing to send.
+        private boolean fill(ByteBuffer buffer, OutboundQueue outbound) {
+            buffer.clear();
+            if (unsent != null) {
+                buffer.put(unsent);
+                unsent = null;
+            }
+            while (buffer.hasRemaining()) {
+                if (current == null) {
+                    current = outbound.poll();
+                    if (current == null) {
+                        break;
+                    }
+                    currentOffset = current.position();
+                }
+                int n = Math.min(buffer.remaining(), current.limit() - currentOffset);
+                buffer.put(buffer.position(), current, currentOffset, n);
+                buffer.position(buffer.position() + n);
+                currentOffset += n;
+                if (currentOffset == current.limit()) {
+                    current = null;
+                }
+            }
+            return buffer.position() > 0;
+        }
+
+        // Event loop thread only
+        private void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            handler.cleanup();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+// Frames.java
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Compact binary protocol, negotiated per connection next to the line-based text one.
+// Every frame is: opcode (1 byte) | payload length (4 bytes, big-endian) | payload.
+// Strings inside a payload are a 2-byte length followed by UTF-8 bytes; a payload that
+// is a single piece of text is just the UTF-8 bytes.
+//
+// A binary client reads the text greeting, then sends HELLO. The server answers HELLO
+// and only sends frames from then on. A text client never starts with a 0 byte, so the
+// first byte of input tells the two apart.
+public class Frames {
+    static final int HEADER_BYTES = 5;
+    // Largest payload a client may send, same limit as a text line
+    static final int MAX_PAYLOAD_BYTES = EventLoopServer.MAX_LINE_BYTES;
+    // Largest string field, bounded by its 2-byte length
+    static final int MAX_STRING_BYTES = 0xFFFF;
+    static final int MAGIC = 0x43484154; // "CHAT"
+    static final byte VERSION = 1;
+
+    // Client to server
+    static final byte HELLO = 0x00;        // int magic, byte version
+    static final byte LINE = 0x01;         // text: answer to the current prompt, same as a text line
+    static final byte JOIN = 0x02;         // string room, string password; from the main menu
+    static final byte SEND = 0x03;         // text: message for the current room or private chat, never a command
+    static final byte HISTORY_PAGE = 0x04; // int limit, long beforeSeq (-1 for the newest)
+    static final byte PONG = 0x05;         // empty: answer to PING
+
+    // Server to client (HELLO is echoed back)
+    static final byte TEXT = 0x01;         // text: menus, prompts and notices, printed as-is
+    static final byte MESSAGE = 0x10;      // long seq, long timestamp, string room, string sender, string body
+    static final byte PRESENCE = 0x11;     // string room, string user, byte 1 joined / 0 left
+    static final byte HISTORY = 0x12;      // string room, int count, count x (long seq, string sender, string body)
+    static final byte PRIVATE = 0x13;      // string sender, string body
+    static final byte PING = 0x14;         // empty: the client has been quiet, answer with PONG
+
+    // Shared by every queue it is sent on
+    private static final ByteBuffer PING_FRAME = finish(start(PING, 0));
+
+    static ByteBuffer hello() {
+        ByteBuffer frame = start(HELLO, 5);
+        frame.putInt(MAGIC).put(VERSION);
+        return finish(frame);
+    }
+
+    // True if a HELLO payload is one this server speaks
+    static boolean isHello(ByteBuffer payload) {
+        return payload.remaining() == 5 && payload.getInt() == MAGIC && payload.get() == VERSION;
+    }
+
+    static ByteBuffer ping() {
+        return PING_FRAME;
+    }
+
+    static ByteBuffer pong() {
+        return finish(start(PONG, 0));
+    }
+
+    static ByteBuffer text(byte opcode, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return finish(start(opcode, bytes.length).put(bytes));
+    }
+
+    static ByteBuffer join(String room, String password) {
+        byte[] roomBytes = utf8(room);
+        byte[] passwordBytes = utf8(password);
+        ByteBuffer frame = start(JOIN, 4 + roomBytes.length + passwordBytes.length);
+        putString(frame, roomBytes);
+        putString(frame, passwordBytes);
+        return finish(frame);
+    }
+
+    static ByteBuffer historyPage(int limit, long beforeSeq) {
+        return finish(start(HISTORY_PAGE, 12).putInt(limit).putLong(beforeSeq));
+    }
+
+    static ByteBuffer message(long seq, long timestamp, String room, String sender, String body) {
+        byte[] roomBytes = utf8(room);
+        byte[] senderBytes = utf8(sender);
+        byte[] bodyBytes = utf8(body);
+        ByteBuffer frame = start(MESSAGE, 16 + 6 + roomBytes.length + senderBytes.length + bodyBytes.length);
+        frame.putLong(seq).putLong(timestamp);
+        putString(frame, roomBytes);
+        putString(frame, senderBytes);
+        putString(frame, bodyBytes);
+        return finish(frame);
+    }
+
+    static ByteBuffer presence(String room, String user, boolean joined) {
+        byte[] roomBytes = utf8(room);
+        byte[] userBytes = utf8(user);
+        ByteBuffer frame = start(PRESENCE, 5 + roomBytes.length + userBytes.length);
+        putString(frame, roomBytes);
+        putString(frame, userBytes);
+        frame.put((byte) (joined ? 1 : 0));
+        return finish(frame);
+    }
+
+    static ByteBuffer history(String room, List<ChatHistory.Entry> entries) {
+        byte[] roomBytes = utf8(room);
+        byte[][] senders = new byte[entries.size()][];
+        byte[][] bodies = new byte[entries.size()][];
+        int length = 2 + roomBytes.length + 4;
+        for (int i = 0; i < entries.size(); i++) {
+            senders[i] = utf8(entries.get(i).username());
+            bodies[i] = utf8(entries.get(i).message());
+            length += 8 + 4 + senders[i].length + bodies[i].length;
+        }
+
+        ByteBuffer frame = start(HISTORY, length);
+        putString(frame, roomBytes);
+        frame.putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            frame.putLong(entries.get(i).seq());
+            putString(frame, senders[i]);
+            putString(frame, bodies[i]);
+        }
+        return finish(frame);
+    }
+
+    static ByteBuffer privateMessage(String sender, String body) {
+        byte[] senderBytes = utf8(sender);
+        byte[] bodyBytes = utf8(body);
+        ByteBuffer frame = start(PRIVATE, 4 + senderBytes.length + bodyBytes.length);
+        putString(frame, senderBytes);
+        putString(frame, bodyBytes);
+        return finish(frame);
+    }
+
+    // Reads a length-prefixed string field
+    static String getString(ByteBuffer payload) {
+        int length = Short.toUnsignedInt(payload.getShort());
+        return decode(payload, length);
+    }
+
+    // Reads the rest of the payload as text
+    static String getText(ByteBuffer payload) {
+        return decode(payload, payload.remaining());
+    }
+
+    private static String decode(ByteBuffer payload, int length) {
+        if (length > payload.remaining()) {
+            throw new IllegalArgumentException("String runs past the end of the frame");
+        }
+        String text;
+        if (payload.hasArray()) {
+            text = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            payload.get(payload.position(), bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        payload.position(payload.position() + length);
+        return text;
+    }
+
+    // Longest prefix of text that fits in a string field
+    static String fit(String text) {
+        return fit(text, MAX_STRING_BYTES);
+    }
+
+    // Longest prefix of text whose UTF-8 encoding is at most maxBytes. Counts a UTF-16 char
+    // as at most 3 bytes and a surrogate pair as 4, which is never less than it encodes to.
+    static String fit(String text, int maxBytes) {
+        if ((long) text.length() * 3 <= maxBytes) {
+            return text;
+        }
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean pair = Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1));
+            int n = c < 0x80 ? 1 : c < 0x800 ? 2 : pair ? 4 : 3;
+            if (bytes + n > maxBytes) {
+                return text.substring(0, i);
+            }
+            bytes += n;
+            if (pair) {
+                i++;
+            }
+        }
+        return text;
+    }
+
+    private static byte[] utf8(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String field too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer frame, byte[] bytes) {
+        frame.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static ByteBuffer start(byte opcode, int payloadLength) {
+        return ByteBuffer.allocate(HEADER_BYTES + payloadLength).put(opcode).putInt(payloadLength);
+    }
+
+    // Same sharing rules as OutboundQueue.encode
+    private static ByteBuffer finish(ByteBuffer frame) {
+        return frame.flip().asReadOnlyBuffer();
+    }
+}
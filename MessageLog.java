@@ -0,0 +1,635 @@
+// MessageLog.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+
+// Durable room history: one append-only log per room, split into segment files.
+//
+//   <dataDir>/rooms/<hex room name>/room.meta          room name and password
+//   <dataDir>/rooms/<hex room name>/<first seq>.log    segments, named by their first message id
+//
+// Each record is [int length][int crc32][long timestamp][short senderLength][sender][body],
+// where length counts everything after itself. A record's id is its segment's first id plus
+// its position in the segment, and a sparse index per segment maps ids to file offsets.
+// Appends are queued and written by a single writer thread, which fsyncs every room it
+// touched once per batch (group commit), so the chat threads never wait on the disk.
+// Recovery maps segments read-only and only scans as far back as it needs to refill each
+// room's in-memory history.
+public class MessageLog {
+    static final long SEGMENT_BYTES = Long.getLong("chat.logSegmentBytes", 16L * 1024 * 1024);
+    static final long RETENTION_BYTES = Long.getLong("chat.logRetentionBytes", 256L * 1024 * 1024);
+    // Longest a message waits for room in the writer's queue, under its room's lock
+    static final long APPEND_TIMEOUT_MILLIS = Long.getLong("chat.logAppendTimeoutMillis", 100);
+
+    private static final String META_FILE = "room.meta";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    // Every this many records a segment's index remembers a file position
+    static final int INDEX_INTERVAL = Integer.getInteger("chat.logIndexInterval", 32);
+    private static final int HEADER_BYTES = 8;       // length + crc
+    private static final int MIN_RECORD_BYTES = 14;  // crc + timestamp + sender length
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int MAX_BATCH = 4096;
+    // How often an idle writer looks whether the log is being closed
+    private static final long CLOSE_CHECK_MILLIS = 100;
+
+    // One persisted message; seq is its id within the room
+    record Record(long seq, long timestamp, String sender, String body) {}
+
+    // A room found on disk, with the tail of its history
+    record RecoveredRoom(String name, String password, RoomLog log, long nextSeq, List<Record> recent) {}
+
+    // A message to write, or with closed set, a request to close the log's files once
+    // everything queued before it is written
+    private record Append(RoomLog log, long seq, long timestamp, String sender, String body,
+            CompletableFuture<Void> closed) {}
+
+    private final Path roomsDir;
+    private final BlockingQueue<Append> pending = new LinkedBlockingQueue<>(65536);
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    MessageLog(Path dataDir) throws IOException {
+        this.roomsDir = dataDir.resolve("rooms");
+        Files.createDirectories(roomsDir);
+        this.writer = new Thread(this::writeLoop, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Creates the on-disk log for a new room
+    RoomLog createRoom(String name, String password) throws IOException {
+        return createRoom(name, password, 0);
+    }
+
+    // Creates the log for a room whose first firstSeq messages are kept elsewhere (a room
+    // handed over by another cluster node). Segments left from an earlier stay here are dropped.
+    RoomLog createRoom(String name, String password, long firstSeq) throws IOException {
+        Path dir = roomsDir.resolve(hex(name));
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, "*{" + SEGMENT_SUFFIX + "," + INDEX_SUFFIX + "}")) {
+            for (Path path : stale) {
+                Files.delete(path);
+            }
+        }
+        try (DataOutputStream meta = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(dir.resolve(META_FILE))))) {
+            meta.writeUTF(name);
+            meta.writeUTF(password);
+        }
+        RoomLog log = new RoomLog(dir);
+        log.openActive(firstSeq, 0);
+        log.nextSeq = firstSeq;
+        return log;
+    }
+
+    // Loads every room on disk, keeping up to historyCapacity (by room name) of its newest messages
+    List<RecoveredRoom> recover(ToIntFunction<String> historyCapacity) throws IOException {
+        List<RecoveredRoom> recovered = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(roomsDir)) {
+            for (Path dir : dirs) {
+                RecoveredRoom room = reopen(dir, historyCapacity);
+                if (room != null) {
+                    recovered.add(room);
+                }
+            }
+        }
+        return recovered;
+    }
+
+    // Loads one room's log from dir, or returns null if no room is kept there. Also brings
+    // back a room that was unloaded, once its close has completed.
+    RecoveredRoom reopen(Path dir, ToIntFunction<String> historyCapacity) throws IOException {
+        Path metaPath = dir.resolve(META_FILE);
+        if (!Files.isRegularFile(metaPath)) {
+            return null;
+        }
+        String name;
+        String password;
+        try (DataInputStream meta = new DataInputStream(new BufferedInputStream(Files.newInputStream(metaPath)))) {
+            name = meta.readUTF();
+            password = meta.readUTF();
+        }
+        RoomLog log = new RoomLog(dir);
+        List<Record> recent = log.recover(historyCapacity.applyAsInt(name));
+        return new RecoveredRoom(name, password, log, log.nextSeq, recent);
+    }
+
+    // Closes the files of a room that is being taken out of memory. Completes once
+    // everything queued for it is on disk; the log must not be appended to after this.
+    // Like append, waits at most APPEND_TIMEOUT_MILLIS for room in the writer's queue, and
+    // returns null if there was none: the log is still open then.
+    CompletableFuture<Void> unload(RoomLog log) {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        try {
+            if (pending.offer(new Append(log, -1, 0, null, null, closed), APPEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return closed;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    // Writes whatever is queued, fsyncs it and stops the writer
+    void close() throws InterruptedException {
+        closed = true;
+        writer.join();
+    }
+
+    private void writeLoop() {
+        List<Append> batch = new ArrayList<>();
+        Set<RoomLog> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (true) {
+            if (!closed) {
+                // Not interrupted to close: an interrupt during a write would close the file under it
+                try {
+                    Append next = pending.poll(CLOSE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    // Not used to stop the writer, see close
+                }
+            }
+            pending.drainTo(batch, MAX_BATCH);
+            if (batch.isEmpty()) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+
+            for (Append append : batch) {
+                if (append.closed() != null) {
+                    try {
+                        append.log.close();
+                        touched.remove(append.log);
+                        append.closed().complete(null);
+                    } catch (IOException e) {
+                        System.out.println("Could not close message log in " + append.log.dir + ": " + e.getMessage());
+                        append.closed().completeExceptionally(e);
+                    }
+                    continue;
+                }
+                try {
+                    append.log.write(append);
+                    touched.add(append.log);
+                } catch (IOException e) {
+                    System.out.println("Could not write message log in " + append.log.dir + ": " + e.getMessage());
+                }
+            }
+            // Group commit: one fsync per room per batch
+            for (RoomLog log : touched) {
+                try {
+                    log.force();
+                } catch (IOException e) {
+                    System.out.println("Could not sync message log in " + log.dir + ": " + e.getMessage());
+                }
+            }
+            batch.clear();
+            touched.clear();
+        }
+    }
+
+    // The log of one room
+    class RoomLog {
+        final Path dir;
+        // Segments oldest first; the last one is being appended to. Only the writer thread
+        // changes the list, readers paging through history work on a snapshot of it.
+        private final List<Segment> segments = new CopyOnWriteArrayList<>();
+        private FileChannel active;
+        private volatile long nextSeq = 0;
+        // Set when a message could not be queued. Ids are positions in the log, so it can't
+        // skip one: it keeps what it has and takes nothing more. Set under the room lock,
+        // also read by the search indexer.
+        private volatile boolean stopped = false;
+
+        RoomLog(Path dir) {
+            this.dir = dir;
+        }
+
+        // Queues a message to be persisted. Called under the room lock, so records arrive in
+        // seq order. Waits at most APPEND_TIMEOUT_MILLIS when the writer has fallen behind,
+        // rather than stalling every sender in the room on the disk. Returns false if the
+        // message was not queued, and from then on the room's messages are only kept in memory.
+        // A message too long for one record is cut to fit: scan would take a longer record
+        // for a torn write and recovery would drop it and everything after it.
+        boolean append(long seq, long timestamp, String sender, String body) {
+            if (stopped) {
+                return false;
+            }
+            sender = Frames.fit(sender);
+            body = Frames.fit(body, MAX_RECORD_BYTES - MIN_RECORD_BYTES - Frames.MAX_STRING_BYTES);
+            try {
+                if (pending.offer(new Append(this, seq, timestamp, sender, body, null), APPEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped = true;
+            System.out.println("Message log in " + dir + " fell behind; newer messages are kept in memory only.");
+            return false;
+        }
+
+        // The room moved to another cluster node: recovery skips it from now on. Records
+        // still queued are written and then its files are closed, like unload; the segments
+        // are dropped if the room comes back.
+        void retire() throws IOException {
+            Files.deleteIfExists(dir.resolve(META_FILE));
+            if (unload(this) == null) {
+                // Nothing is appended after this, so the close can wait for the writer off the room lock
+                Append close = new Append(this, -1, 0, null, null, new CompletableFuture<>());
+                ForkJoinPool.commonPool().execute(() -> {
+                    try {
+                        pending.put(close);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+
+        // True once append has started refusing messages
+        boolean isStopped() {
+            return stopped;
+        }
+
+        // Id of the oldest message still on disk
+        long firstSeq() {
+            return segments.get(0).baseSeq;
+        }
+
+        // Id the next written message will get; everything below it is on disk
+        long nextSeq() {
+            return nextSeq;
+        }
+
+        // Up to limit persisted messages with ids below beforeSeq, oldest first.
+        // Each segment involved costs one index lookup and one bounded read.
+        List<Record> readBefore(long beforeSeq, int limit) throws IOException {
+            List<Segment> snapshot = new ArrayList<>(segments);
+            long to = Math.min(beforeSeq, nextSeq);
+            long from = Math.max(to - limit, snapshot.get(0).baseSeq);
+
+            LinkedList<Record> page = new LinkedList<>();
+            for (int i = find(snapshot, to - 1); i >= 0 && to > from; i--) {
+                Segment segment = snapshot.get(i);
+                long start = Math.max(from, segment.baseSeq);
+                page.addAll(0, segment.read((int) (start - segment.baseSeq), (int) (to - segment.baseSeq)));
+                to = start;
+            }
+            return page;
+        }
+
+        // Index of the segment holding seq, or -1 if it is older than the log
+        private int find(List<Segment> snapshot, long seq) {
+            int low = 0;
+            int high = snapshot.size() - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (snapshot.get(mid).baseSeq <= seq) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        private void write(Append append) throws IOException {
+            byte[] senderBytes = append.sender().getBytes(StandardCharsets.UTF_8);
+            byte[] bodyBytes = append.body().getBytes(StandardCharsets.UTF_8);
+            int payloadLength = 8 + 2 + senderBytes.length + bodyBytes.length;
+
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+            record.putInt(4 + payloadLength);
+            record.putInt(0); // crc, filled in below
+            record.putLong(append.timestamp());
+            record.putShort((short) senderBytes.length);
+            record.put(senderBytes);
+            record.put(bodyBytes);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), HEADER_BYTES, payloadLength);
+            record.putInt(4, (int) crc.getValue());
+            record.flip();
+
+            Segment current = segments.get(segments.size() - 1);
+            if (current.size > 0 && current.size + record.remaining() > SEGMENT_BYTES) {
+                roll(append.seq());
+                current = segments.get(segments.size() - 1);
+            }
+            long position = current.size;
+            while (record.hasRemaining()) {
+                active.write(record);
+            }
+            current.appended(position, position + record.limit());
+            nextSeq = append.seq() + 1;
+        }
+
+        private void force() throws IOException {
+            active.force(false);
+        }
+
+        // Writer thread: syncs and closes every file (see unload)
+        private void close() throws IOException {
+            active.force(false);
+            active.close();
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+
+        // Starts a new segment and drops the oldest ones past the retention limit
+        private void roll(long baseSeq) throws IOException {
+            active.force(false);
+            active.close();
+            segments.get(segments.size() - 1).saveIndex();
+            openActive(baseSeq, 0);
+
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.size;
+            }
+            while (segments.size() > 1 && total > RETENTION_BYTES) {
+                Segment oldest = segments.remove(0);
+                total -= oldest.size;
+                oldest.delete();
+            }
+        }
+
+        private void openActive(long baseSeq, long size) throws IOException {
+            Path path = dir.resolve(String.format("%020d", baseSeq) + SEGMENT_SUFFIX);
+            active = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            active.truncate(size);
+            active.position(size);
+            if (segments.isEmpty() || segments.get(segments.size() - 1).baseSeq != baseSeq) {
+                Segment segment = new Segment(baseSeq, path);
+                segment.indexed = true;
+                segments.add(segment);
+            }
+        }
+
+        // Reopens an existing room: drops a torn tail, finds the next id and reads the newest records
+        private List<Record> recover(int historyCapacity) throws IOException {
+            List<Segment> found = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+                for (Path path : files) {
+                    String name = path.getFileName().toString();
+                    Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), path);
+                    segment.size = Files.size(path);
+                    found.add(segment);
+                }
+            }
+            found.sort(Comparator.comparingLong(segment -> segment.baseSeq));
+            if (found.isEmpty()) {
+                openActive(0, 0);
+                return new ArrayList<>();
+            }
+            // Ids are contiguous, so a sealed segment holds everything up to the next one's first id
+            for (int i = 0; i < found.size() - 1; i++) {
+                found.get(i).count = (int) (found.get(i + 1).baseSeq - found.get(i).baseSeq);
+            }
+
+            // Newest first, only as far back as the history needs
+            LinkedList<Record> recent = new LinkedList<>();
+            for (int i = found.size() - 1; i >= 0; i--) {
+                Segment segment = found.get(i);
+                boolean last = i == found.size() - 1;
+                if (!last && recent.size() >= historyCapacity) {
+                    break;
+                }
+                try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    int[] offsets = scan(map, last);
+                    segment.buildIndex(offsets, offsets.length == 0 ? 0 : end(map, offsets[offsets.length - 1]));
+                    if (last) {
+                        nextSeq = segment.baseSeq + segment.count;
+                    }
+                    for (int r = offsets.length - 1; r >= 0 && recent.size() < historyCapacity; r--) {
+                        recent.addFirst(decode(map, offsets[r], segment.baseSeq + r));
+                    }
+                }
+            }
+
+            // Append after the last good record; anything torn past it is cut off
+            segments.addAll(found);
+            Segment last = found.get(found.size() - 1);
+            openActive(last.baseSeq, last.size);
+            return new ArrayList<>(recent);
+        }
+    }
+
+    // One segment file, with a sparse in-memory index holding the position of every
+    // INDEX_INTERVAL-th record. Sealed segments also keep the index in a .idx file
+    // next to the segment so it does not have to be rebuilt after a restart.
+    static class Segment {
+        final long baseSeq;
+        final Path path;
+        // Only the writer thread changes these. size is updated before count, so a reader
+        // that sees a count also sees the bytes of that many records.
+        volatile long size;
+        volatile int count;
+        private volatile int[] positions = new int[16];
+        private volatile boolean indexed = false; // false until loaded or rebuilt after a restart
+        private FileChannel reader;
+
+        Segment(long baseSeq, Path path) {
+            this.baseSeq = baseSeq;
+            this.path = path;
+        }
+
+        // Writer thread: a record was written at [start, end)
+        void appended(long start, long end) {
+            if (count % INDEX_INTERVAL == 0) {
+                int entry = count / INDEX_INTERVAL;
+                int[] current = positions;
+                if (entry == current.length) {
+                    current = Arrays.copyOf(current, entry * 2);
+                }
+                current[entry] = (int) start;
+                positions = current;
+            }
+            size = end;
+            count = count + 1;
+        }
+
+        void buildIndex(int[] offsets, long validSize) {
+            int[] index = new int[Math.max(16, (offsets.length + INDEX_INTERVAL - 1) / INDEX_INTERVAL)];
+            for (int i = 0; i < offsets.length; i += INDEX_INTERVAL) {
+                index[i / INDEX_INTERVAL] = offsets[i];
+            }
+            positions = index;
+            size = validSize;
+            count = offsets.length;
+            indexed = true;
+        }
+
+        // Records [from, to) relative to baseSeq: one index lookup and one read
+        synchronized List<Record> read(int from, int to) throws IOException {
+            if (reader == null) {
+                reader = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            if (!indexed) {
+                loadIndex();
+            }
+            int available = count;
+            long fileEnd = size;
+            int[] index = positions;
+            to = Math.min(to, available);
+            if (from >= to) {
+                return new ArrayList<>();
+            }
+
+            // Nearest indexed record at or before from, and at or after to
+            int first = from / INDEX_INTERVAL;
+            int next = (to + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            long start = index[first];
+            long end = next * INDEX_INTERVAL < available ? index[next] : fileEnd;
+
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            while (bytes.hasRemaining()) {
+                if (reader.read(bytes, start + bytes.position()) < 0) {
+                    break;
+                }
+            }
+            bytes.flip();
+
+            List<Record> records = new ArrayList<>(to - from);
+            int position = 0;
+            for (int r = first * INDEX_INTERVAL; r < to && position + HEADER_BYTES <= bytes.limit(); r++) {
+                if (r >= from) {
+                    records.add(decode(bytes, position, baseSeq + r));
+                }
+                position = end(bytes, position);
+            }
+            return records;
+        }
+
+        // Sealed segment after a restart: use its .idx file, or rebuild it from the records
+        private void loadIndex() throws IOException {
+            int entries = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            Path indexPath = indexPath();
+            if (Files.isRegularFile(indexPath) && Files.size(indexPath) == entries * 4L) {
+                ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+                int[] index = new int[Math.max(16, entries)];
+                for (int i = 0; i < entries; i++) {
+                    index[i] = data.getInt();
+                }
+                positions = index;
+                indexed = true;
+                return;
+            }
+            MappedByteBuffer map = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+            int[] offsets = scan(map, false);
+            buildIndex(offsets, offsets.length == 0 ? 0 : end(map, offsets[offsets.length - 1]));
+            saveIndex();
+        }
+
+        void saveIndex() throws IOException {
+            int entries = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            ByteBuffer data = ByteBuffer.allocate(entries * 4);
+            int[] index = positions;
+            for (int i = 0; i < entries; i++) {
+                data.putInt(index[i]);
+            }
+            Files.write(indexPath(), data.array());
+        }
+
+        synchronized void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+
+        synchronized void delete() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(indexPath());
+        }
+
+        private Path indexPath() {
+            String name = path.getFileName().toString();
+            return path.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+        }
+    }
+
+    // Offsets of the records in a mapped segment. With verify, stops at the first record
+    // whose length or checksum is wrong (a write cut short by a crash).
+    static int[] scan(ByteBuffer map, boolean verify) {
+        int[] offsets = new int[64];
+        int count = 0;
+        int position = 0;
+        int limit = map.limit();
+        while (position + HEADER_BYTES <= limit) {
+            int length = map.getInt(position);
+            if (length < MIN_RECORD_BYTES || length > MAX_RECORD_BYTES || position + 4 + length > limit) {
+                break;
+            }
+            if (verify && !checksumMatches(map, position, length)) {
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += 4 + length;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    // Offset just past the record at position
+    static int end(ByteBuffer map, int position) {
+        return position + 4 + map.getInt(position);
+    }
+
+    static Record decode(ByteBuffer map, int position, long seq) {
+        int length = map.getInt(position);
+        long timestamp = map.getLong(position + HEADER_BYTES);
+        int senderLength = map.getShort(position + HEADER_BYTES + 8) & 0xFFFF;
+        int senderStart = position + HEADER_BYTES + 10;
+        int bodyLength = length - MIN_RECORD_BYTES - senderLength;
+        return new Record(seq, timestamp,
+            string(map, senderStart, senderLength),
+            string(map, senderStart + senderLength, bodyLength));
+    }
+
+    private static boolean checksumMatches(ByteBuffer map, int position, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(map.slice(position + HEADER_BYTES, length - 4));
+        return (int) crc.getValue() == map.getInt(position + 4);
+    }
+
+    private static String string(ByteBuffer map, int position, int length) {
+        byte[] bytes = new byte[length];
+        map.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Room names can hold any character, so directories use their UTF-8 bytes in hex
+    private static String hex(String name) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
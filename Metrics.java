@@ -0,0 +1,249 @@
+// Metrics.java
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+// Server-wide counters and latency histograms. Hot paths only add to LongAdders, so
+// recording never makes threads contend; gauges (queue depths, history sizes) are
+// computed when scraped. Served in Prometheus text format on -Dchat.adminPort
+// (loopback only). Broadcasts and logins are also JFR events.
+public class Metrics {
+    // 0 leaves the admin endpoint off
+    static final int ADMIN_PORT = Integer.getInteger("chat.adminPort", 0);
+
+    static final LongAdder connectionsOpened = new LongAdder();
+    static final LongAdder connectionsClosed = new LongAdder();
+    static final LongAdder linesIn = new LongAdder();       // lines and frames read from clients
+    static final LongAdder logins = new LongAdder();
+    static final LongAdder loginFailures = new LongAdder(); // wrong passwords
+    static final LongAdder busy = new LongAdder();          // async work rejected, client told to retry
+    static final LongAdder messagesIn = new LongAdder();    // messages published to rooms this node owns
+    static final LongAdder messagesOut = new LongAdder();   // copies queued to room members
+    static final LongAdder presenceNotices = new LongAdder(); // friend online/offline notices queued
+    static final LongAdder mailboxStored = new LongAdder();  // private messages kept for offline users
+    static final LongAdder mailboxDropped = new LongAdder(); // ... and dropped from full mailboxes
+    static final LongAdder roomsReclaimed = new LongAdder(); // empty rooms taken out of memory
+    static final LongAdder roomsLoaded = new LongAdder();    // ... and loaded back from disk
+    static final LongAdder sessionsExpired = new LongAdder(); // closed by a login, idle or heartbeat timeout
+    static final LongAdder logDropped = new LongAdder();      // messages the message log fell too far behind to take
+    static final LongAdder searchDropped = new LongAdder();   // messages the search indexer fell too far behind to take
+    static final LongAdder messagesThrottled = new LongAdder(); // room messages over a user's or room's rate limit
+    static final LongAdder messagesCoalesced = new LongAdder(); // ... sent later, merged into one message
+    static final LongAdder messagesRejected = new LongAdder();  // ... not sent
+
+    // True while a JFR recording runs; hot paths don't build events otherwise
+    static volatile boolean recording = false;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                recording = FlightRecorder.getFlightRecorder().getRecordings().stream()
+                    .anyMatch(r -> r.getState() == RecordingState.RUNNING);
+            }
+        });
+    }
+
+    static final Histogram broadcastNanos = new Histogram();
+    static final Histogram authNanos = new Histogram();     // password hash or verify, including queueing
+    static final Histogram searchNanos = new Histogram();   // /search on this node's rooms, including reading the matches
+
+    // Latency histogram with power-of-two buckets from 1 us to 17 s
+    static class Histogram {
+        private static final int MIN_SHIFT = 10; // first bucket is <= 2^10 ns
+        private final LongAdder[] buckets = new LongAdder[26]; // last one is +Inf
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int shift = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos - 1)); // ceil(log2(nanos))
+            buckets[Math.min(buckets.length - 1, Math.max(0, shift - MIN_SHIFT))].increment();
+            sumNanos.add(nanos);
+        }
+
+        // Prometheus histogram in seconds: cumulative buckets, _sum and _count
+        void write(StringBuilder text, String name, String help) {
+            header(text, name, help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String bound = i == buckets.length - 1 ? "+Inf" : Double.toString((1L << (MIN_SHIFT + i)) / 1e9);
+                text.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+            text.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    @Name("chat.Broadcast")
+    @Label("Room Broadcast")
+    @Category("Chat")
+    static class BroadcastEvent extends Event {
+        @Label("Room")
+        String room;
+        @Label("Recipients")
+        int recipients;
+    }
+
+    @Name("chat.Login")
+    @Label("Login")
+    @Category("Chat")
+    static class LoginEvent extends Event {
+        @Label("User")
+        String user;
+        @Label("Success")
+        boolean success;
+
+        static void emit(String user, boolean success) {
+            if (recording) {
+                LoginEvent event = new LoginEvent();
+                event.user = user;
+                event.success = success;
+                event.commit();
+            }
+        }
+    }
+
+    // Serves GET /metrics on the loopback interface
+    static void startAdminServer(int port, Supplier<String> render) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics on http://localhost:" + port + "/metrics");
+    }
+
+    static String render(Collection<Server.ChatRoom> rooms, Collection<Server.ClientHandler> clients) {
+        StringBuilder text = new StringBuilder(4096);
+        counter(text, "chat_connections_opened_total", "Connections accepted.", connectionsOpened.sum());
+        counter(text, "chat_connections_closed_total", "Connections closed.", connectionsClosed.sum());
+        gauge(text, "chat_connections_active", "Open connections.", connectionsOpened.sum() - connectionsClosed.sum());
+        gauge(text, "chat_clients_logged_in", "Logged in users.", clients.size());
+        counter(text, "chat_lines_in_total", "Lines and frames read from clients.", linesIn.sum());
+        counter(text, "chat_logins_total", "Successful logins.", logins.sum());
+        counter(text, "chat_login_failures_total", "Logins with a wrong password.", loginFailures.sum());
+        counter(text, "chat_busy_total", "Requests answered with 'Server is busy'.", busy.sum());
+        counter(text, "chat_messages_in_total", "Messages published to rooms owned by this node.", messagesIn.sum());
+        counter(text, "chat_messages_out_total", "Message copies queued to room members.", messagesOut.sum());
+        counter(text, "chat_presence_notices_total", "Friend online/offline notices queued.", presenceNotices.sum());
+        counter(text, "chat_mailbox_stored_total", "Private messages kept for offline users.", mailboxStored.sum());
+        counter(text, "chat_mailbox_dropped_total", "Oldest private messages dropped from full mailboxes.", mailboxDropped.sum());
+        counter(text, "chat_rooms_reclaimed_total", "Rooms taken out of memory after staying empty.", roomsReclaimed.sum());
+        counter(text, "chat_rooms_loaded_total", "Reclaimed rooms loaded back from disk.", roomsLoaded.sum());
+        counter(text, "chat_sessions_expired_total", "Connections closed by a login, idle or heartbeat timeout.", sessionsExpired.sum());
+        counter(text, "chat_log_dropped_total", "Messages kept in memory only, because the message log fell behind.", logDropped.sum());
+        counter(text, "chat_search_dropped_total", "Messages not queued for the search index, because it fell behind; read back from the message log.", searchDropped.sum());
+        counter(text, "chat_messages_throttled_total", "Room messages over a user's or a room's rate limit.", messagesThrottled.sum());
+        counter(text, "chat_messages_coalesced_total", "Throttled messages sent later, merged with the ones after them.", messagesCoalesced.sum());
+        counter(text, "chat_messages_rejected_total", "Throttled messages not sent.", messagesRejected.sum());
+
+        long depth = 0;
+        long maxDepth = 0;
+        for (Server.ClientHandler client : clients) {
+            int clientDepth = client.outbound.depth();
+            depth += clientDepth;
+            maxDepth = Math.max(maxDepth, clientDepth);
+        }
+        gauge(text, "chat_outbound_queue_depth", "Messages queued to logged in clients.", depth);
+        gauge(text, "chat_outbound_queue_depth_max", "Longest outbound queue of a logged in client.", maxDepth);
+        counter(text, "chat_outbound_dropped_total", "Messages dropped for slow clients.", OutboundQueue.dropped.sum());
+        counter(text, "chat_outbound_slow_disconnects_total", "Clients disconnected for being too slow.", OutboundQueue.slowDisconnects.sum());
+        counter(text, "chat_socket_writes_total", "Socket write calls.", OutboundQueue.socketWrites.sum());
+
+        broadcastNanos.write(text, "chat_broadcast_seconds", "Time to publish a message to a room and queue it to every member.");
+        authNanos.write(text, "chat_auth_seconds", "Password hashing and verification time, including queueing.");
+        searchNanos.write(text, "chat_search_seconds", "Time to answer a /search, including reading the matching messages.");
+
+        gauge(text, "chat_rooms", "Rooms.", rooms.size());
+        header(text, "chat_room_members", "Members per room.", "gauge");
+        for (Server.ChatRoom room : rooms) {
+            roomSample(text, "chat_room_members", room, room.memberCount());
+        }
+        header(text, "chat_room_history_size", "Messages held in each room's history.", "gauge");
+        for (Server.ChatRoom room : rooms) {
+            roomSample(text, "chat_room_history_size", room, room.history.size());
+        }
+        // Owned rooms only, so each room's series add up to its messages across the cluster
+        header(text, "chat_room_messages_in_total", "Messages published per room owned by this node.", "counter");
+        for (Server.ChatRoom room : rooms) {
+            if (!room.remote) {
+                roomSample(text, "chat_room_messages_in_total", room, room.messagesIn.sum());
+            }
+        }
+        header(text, "chat_room_messages_out_total", "Message copies queued per room.", "counter");
+        for (Server.ChatRoom room : rooms) {
+            roomSample(text, "chat_room_messages_out_total", room, room.messagesOut.sum());
+        }
+        header(text, "chat_room_throttled_total", "Messages over each room's rate limit.", "counter");
+        for (Server.ChatRoom room : rooms) {
+            roomSample(text, "chat_room_throttled_total", room, room.sendLimiter.throttled.sum());
+        }
+        // Only users who have hit their limit, so the series stay few
+        header(text, "chat_user_throttled_total", "Messages over each logged in user's rate limit, for users with any.", "counter");
+        for (Server.ClientHandler client : clients) {
+            long throttled = client.sendLimiter.throttled.sum();
+            if (throttled > 0) {
+                sample(text, "chat_user_throttled_total", "user", client.username(), throttled);
+            }
+        }
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void roomSample(StringBuilder text, String name, Server.ChatRoom room, long value) {
+        sample(text, name, "room", room.roomName, value);
+    }
+
+    private static void sample(StringBuilder text, String name, String label, String labelValue, long value) {
+        text.append(name).append('{').append(label).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            switch (c) {
+                case '\\' -> text.append("\\\\");
+                case '"' -> text.append("\\\"");
+                case '\n' -> text.append("\\n");
+                default -> text.append(c);
+            }
+        }
+        text.append("\"} ").append(value).append('\n');
+    }
+}
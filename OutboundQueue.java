@@ -0,0 +1,243 @@
+// OutboundQueue.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of encoded messages waiting to be written to one client.
+// Any thread can write to it without touching the socket; a writer thread or the
+// event loop drains it. It is also the Writer behind the handler's PrintWriter.
+//
+// Queued buffers are read-only and may be shared by many clients' queues (a room
+// broadcast is encoded once), so drainers read them with absolute gets and never
+// move their position.
+public class OutboundQueue extends Writer {
+    // What to do when a client is too slow to keep up
+    enum Policy {
+        DROP_OLDEST, // discard the oldest queued message to make room
+        DISCONNECT,  // close the connection
+        COALESCE;    // discard new messages and tell the client how many it missed
+
+        static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outboundCapacity", 1024);
+    static final Policy DEFAULT_POLICY = Policy.parse(System.getProperty("chat.backpressure", "drop-oldest"));
+
+    // Totals across all connections
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder slowDisconnects = new LongAdder();
+    static final LongAdder socketWrites = new LongAdder(); // write calls made by drainers
+
+    private final int capacity;
+    private final Policy policy;
+    private final Runnable onReady; // called when there is something to drain, may be null
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private final StringBuilder pendingText = new StringBuilder();
+    private int skipped = 0;       // messages discarded since the client last caught up (COALESCE)
+    private int highWatermark = 0;
+    private boolean closed = false;
+    private boolean aborted = false; // closed without draining
+    private boolean framed = false;  // printed text goes out as Frames.TEXT
+
+    OutboundQueue(Runnable onReady) {
+        this(DEFAULT_CAPACITY, DEFAULT_POLICY, onReady);
+    }
+
+    OutboundQueue(int capacity, Policy policy, Runnable onReady) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.onReady = onReady;
+    }
+
+    // Queues an encoded message. Returns false if it was not queued.
+    boolean offer(ByteBuffer message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                dropped.increment();
+                switch (policy) {
+                    case DROP_OLDEST -> queue.poll();
+                    case COALESCE -> {
+                        skipped++;
+                        return false;
+                    }
+                    case DISCONNECT -> {
+                        slowDisconnects.increment();
+                        closed = true;
+                        aborted = true;
+                        queue.clear();
+                        notEmpty.signalAll();
+                        return false;
+                    }
+                }
+            }
+            queue.add(message);
+            highWatermark = Math.max(highWatermark, queue.size());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (onReady != null) {
+            onReady.run();
+        }
+        return true;
+    }
+
+    // Next message, or null if nothing is queued (event loop)
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next message, waiting for one; null once the queue is closed and drained (writer thread)
+    ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next message, waiting at most nanos for one; null if none arrived (writer thread lingering for a batch)
+    ByteBuffer poll(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer next() {
+        ByteBuffer message = queue.poll();
+        // The client caught up, tell it what it missed
+        if (queue.isEmpty() && skipped > 0) {
+            String notice = "(" + skipped + " messages skipped)\n";
+            queue.add(framed ? Frames.text(Frames.TEXT, notice) : encode(notice));
+            skipped = 0;
+        }
+        return message;
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int highWatermark() {
+        lock.lock();
+        try {
+            return highWatermark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once closed and everything queued has been handed out
+    boolean isFinished() {
+        lock.lock();
+        try {
+            return closed && queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if the queue was closed because the client fell too far behind
+    boolean isAborted() {
+        lock.lock();
+        try {
+            return aborted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sends printed text as binary frames from now on (the client negotiated Frames)
+    void useFrames() {
+        flush();
+        lock.lock();
+        try {
+            framed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Encodes text into a buffer that can be shared between queues
+    static ByteBuffer encode(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        lock.lock();
+        try {
+            pendingText.append(chars, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Encodes whatever was printed since the last flush as one message
+    @Override
+    public void flush() {
+        String text;
+        boolean asFrame;
+        lock.lock();
+        try {
+            if (pendingText.length() == 0) {
+                return;
+            }
+            text = pendingText.toString();
+            pendingText.setLength(0);
+            asFrame = framed;
+        } finally {
+            lock.unlock();
+        }
+        offer(asFrame ? Frames.text(Frames.TEXT, text) : encode(text));
+    }
+
+    // No more messages; the drainer closes the connection once the queue is empty
+    @Override
+    public void close() {
+        flush();
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (onReady != null) {
+            onReady.run();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+// PasswordHasher.java
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Salted PBKDF2 password hashes, computed on a small fixed pool so the expensive
+// part never runs on a thread that serves sockets. Stored form:
+//   pbkdf2-sha256$<iterations>$<base64 salt>$<base64 hash>
+public class PasswordHasher {
+    static final int ITERATIONS = Integer.getInteger("chat.pbkdf2Iterations", 100_000);
+    static final int THREADS = Integer.getInteger("chat.authThreads", Runtime.getRuntime().availableProcessors());
+    // Logins waiting for a hashing thread; past this the server answers "busy" instead of queueing more
+    static final int QUEUE_CAPACITY = Integer.getInteger("chat.authQueue", 20_000);
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final ExecutorService pool = new ThreadPoolExecutor(
+        THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+        runnable -> {
+            Thread thread = new Thread(runnable, "password-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // Hashes a new password on the pool
+    static CompletableFuture<String> hash(String password) {
+        return submit(() -> {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            byte[] hash = pbkdf2(password, salt, ITERATIONS);
+            Base64.Encoder base64 = Base64.getEncoder();
+            return PREFIX + "$" + ITERATIONS + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+        });
+    }
+
+    // Checks a password against a stored hash on the pool
+    static CompletableFuture<Boolean> verify(String password, String stored) {
+        return submit(() -> {
+            String[] parts = stored.split("\\$");
+            if (parts.length != 4 || !PREFIX.equals(parts[0])) {
+                return false;
+            }
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            byte[] actual = pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1]));
+            return MessageDigest.isEqual(expected, actual);
+        });
+    }
+
+    private static <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
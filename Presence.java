@@ -0,0 +1,111 @@
+// Presence.java
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Tells online users when their friends come online or go offline. A reverse index maps
+// each user to the online users who have them as a friend, so a login or logout costs the
+// user's own friend count to index and their online followers to notify, never a scan of
+// every connected user. Changes are held for DEBOUNCE_MILLIS and coalesced per user: a
+// connection that drops and comes back within that time announces nothing.
+public class Presence {
+    static final long DEBOUNCE_MILLIS = Long.getLong("chat.presenceDebounceMillis", 2000);
+
+    // user -> the handlers of online users (on this node) with user in their friend list
+    private final Map<String, Set<Server.ClientHandler>> followers = new ConcurrentHashMap<>();
+    // Users with a change waiting to be announced. Guarded by itself.
+    private final Map<String, Change> pending = new HashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Also tells the other nodes, null unless clustered
+    volatile Cluster cluster = null;
+
+    // What followers were last told about a user, and where the user is now
+    private static final class Change {
+        final boolean announced;
+        boolean online;
+
+        Change(boolean announced) {
+            this.announced = announced;
+        }
+    }
+
+    // follower has logged in with these friends
+    void online(Server.ClientHandler follower, String user, Collection<String> friends) {
+        for (String friend : friends) {
+            follow(follower, friend);
+        }
+        changed(user, true);
+    }
+
+    void offline(Server.ClientHandler follower, String user, Collection<String> friends) {
+        for (String friend : friends) {
+            followers.computeIfPresent(friend, (name, handlers) -> {
+                handlers.remove(follower);
+                return handlers.isEmpty() ? null : handlers;
+            });
+        }
+        changed(user, false);
+    }
+
+    // Also used when a friend is added
+    void follow(Server.ClientHandler follower, String friend) {
+        followers.compute(friend, (name, handlers) -> {
+            if (handlers == null) {
+                handlers = ConcurrentHashMap.newKeySet();
+            }
+            handlers.add(follower);
+            return handlers;
+        });
+    }
+
+    // The first change starts the debounce window; later ones in it only move the state
+    private void changed(String user, boolean online) {
+        synchronized (pending) {
+            Change change = pending.get(user);
+            if (change == null) {
+                change = new Change(!online);
+                pending.put(user, change);
+                timer.schedule(() -> flush(user), DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            change.online = online;
+        }
+    }
+
+    private void flush(String user) {
+        Change change;
+        synchronized (pending) {
+            change = pending.remove(user);
+        }
+        if (change == null || change.online == change.announced) {
+            return; // back where it started
+        }
+        notifyFollowers(user, change.online);
+        Cluster cluster = this.cluster;
+        if (cluster != null) {
+            cluster.presenceChanged(user, change.online);
+        }
+    }
+
+    // Queues the notice to the followers connected here; also called for changes on other nodes
+    void notifyFollowers(String user, boolean online) {
+        Set<Server.ClientHandler> handlers = followers.get(user);
+        if (handlers == null) {
+            return;
+        }
+        String text = online ? "Your friend " + user + " is now online." : "Your friend " + user + " went offline.";
+        for (Server.ClientHandler handler : handlers) {
+            handler.notice(text);
+            Metrics.presenceNotices.increment();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+// RateLimiter.java
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free token bucket that refills at rate messages per second and holds up to burst.
+// The bucket is kept as one number, the time at which it would be full again (the generic
+// cell rate algorithm): taking a token pushes that time one interval further, and is
+// refused when it would end up more than burst intervals ahead of now. One CAS per message,
+// so a room's limiter can be shared by all its senders.
+public class RateLimiter {
+    // Per connection and per room, 0 turns a limit off
+    static final double USER_RATE = Double.parseDouble(System.getProperty("chat.userMessageRate", "10"));
+    static final int USER_BURST = Integer.getInteger("chat.userMessageBurst", 20);
+    static final double ROOM_RATE = Double.parseDouble(System.getProperty("chat.roomMessageRate", "0"));
+    static final int ROOM_BURST = Integer.getInteger("chat.roomMessageBurst", 100);
+
+    // Messages refused
+    final LongAdder throttled = new LongAdder();
+
+    private final long intervalNanos; // 0 when unlimited
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    RateLimiter(double perSecond, int burst) {
+        this.intervalNanos = perSecond > 0 ? Math.max(1, (long) (1e9 / perSecond)) : 0;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    static RateLimiter forUser() {
+        return new RateLimiter(USER_RATE, USER_BURST);
+    }
+
+    static RateLimiter forRoom() {
+        return new RateLimiter(ROOM_RATE, ROOM_BURST);
+    }
+
+    // Takes a token if there is one; counts the message as throttled if not
+    boolean tryAcquire(long nowNanos) {
+        if (intervalNanos == 0) {
+            return true;
+        }
+        while (true) {
+            long current = fullAt.get();
+            long next = (current == Long.MIN_VALUE || current - nowNanos < 0 ? nowNanos : current) + intervalNanos;
+            if (next - nowNanos > burstNanos) {
+                throttled.increment();
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Gives back a token taken by tryAcquire for a message that was not sent after all
+    void release() {
+        if (intervalNanos != 0) {
+            fullAt.addAndGet(-intervalNanos);
+        }
+    }
+
+    // How long until a token is available, 0 if one is now
+    long waitNanos(long nowNanos) {
+        long current = fullAt.get();
+        if (intervalNanos == 0 || current == Long.MIN_VALUE) {
+            return 0;
+        }
+        return Math.max(0, current + intervalNanos - burstNanos - nowNanos);
+    }
+}
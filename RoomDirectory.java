@@ -0,0 +1,180 @@
+// RoomDirectory.java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// The room list behind "Join a Room". Rooms only mark the directory changed when one is
+// created, reclaimed, joined or left; a menu request reads the current snapshot without taking any
+// lock, and the first one after a change rebuilds it, at most once per REFRESH_MILLIS. A
+// snapshot holds the rooms with the most members first, renders each page of PAGE_SIZE rooms
+// the first time it is shown, and answers prefix lookups from a copy sorted by name. In
+// cluster mode the snapshot is the merged answer of every node, asked again at most once
+// per REFRESH_MILLIS.
+public class RoomDirectory {
+    static final int PAGE_SIZE = Integer.getInteger("chat.roomPageSize", 20);
+    static final long REFRESH_MILLIS = Long.getLong("chat.roomListRefreshMillis", 1000);
+    private static final long REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS);
+
+    private final Collection<Server.ChatRoom> rooms;
+    private final Collection<String> dormant; // rooms kept on disk only, listed with no members
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+    private volatile Snapshot snapshot = null; // null until first asked for
+
+    // Cluster mode: the latest (or pending) listing of every node, and when it was asked for
+    volatile Cluster cluster = null;
+    private CompletableFuture<Snapshot> clusterListing = null; // guarded by this
+    private long clusterListedNanos = 0;
+
+    RoomDirectory(Collection<Server.ChatRoom> rooms, Collection<String> dormant) {
+        this.rooms = rooms;
+        this.dormant = dormant;
+    }
+
+    // A room was created, removed, joined or left. Only writes when the flag is clear, so
+    // busy rooms don't contend on it.
+    void changed() {
+        if (!changed.get()) {
+            changed.set(true);
+        }
+    }
+
+    // This node's rooms
+    Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current == null || (changed.get() && System.nanoTime() - current.builtNanos >= REFRESH_NANOS)) {
+            // Callers arriving during a rebuild keep the old snapshot, unless there is none yet
+            boolean rebuilder = rebuilding.compareAndSet(false, true);
+            if (rebuilder || current == null) {
+                try {
+                    // Cleared first: a change made during the rebuild is picked up by the next one
+                    changed.set(false);
+                    List<Row> rows = new ArrayList<>(rooms.size() + dormant.size());
+                    Set<String> listed = new HashSet<>();
+                    for (Server.ChatRoom room : rooms) {
+                        rows.add(new Row(room.roomName, room.memberCount()));
+                        listed.add(room.roomName);
+                    }
+                    // A room being loaded can be in both for a moment
+                    for (String name : dormant) {
+                        if (listed.add(name)) {
+                            rows.add(new Row(name, 0));
+                        }
+                    }
+                    current = new Snapshot(rows, null);
+                    snapshot = current;
+                } finally {
+                    if (rebuilder) {
+                        rebuilding.set(false);
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    // Every node's rooms (cluster mode)
+    synchronized CompletableFuture<Snapshot> clusterSnapshot() {
+        if (clusterListing == null || (clusterListing.isDone() && System.nanoTime() - clusterListedNanos >= REFRESH_NANOS)) {
+            clusterListing = cluster.listRooms().thenApply(Snapshot::of);
+            clusterListedNanos = System.nanoTime();
+        }
+        return clusterListing;
+    }
+
+    private record Row(String name, int members) {}
+
+    private static final Comparator<Row> MOST_MEMBERS = Comparator.comparingInt(Row::members).reversed()
+        .thenComparing(Row::name);
+
+    // An immutable listing, or the part of one matching a prefix
+    static final class Snapshot {
+        private final long builtNanos = System.nanoTime();
+        private final Row[] rows;       // most members first
+        private final Row[] byName;     // null for a prefix match, which is never searched again
+        private final String prefix;    // null for the full listing
+        private final AtomicReferenceArray<String> pages;
+
+        private Snapshot(List<Row> rows, String prefix) {
+            this.rows = rows.toArray(new Row[0]);
+            Arrays.sort(this.rows, MOST_MEMBERS);
+            this.prefix = prefix;
+            if (prefix == null) {
+                this.byName = this.rows.clone();
+                Arrays.sort(byName, Comparator.comparing(Row::name));
+            } else {
+                this.byName = null;
+            }
+            this.pages = new AtomicReferenceArray<>(Math.max(1, pageCount()));
+        }
+
+        static Snapshot of(Map<String, Integer> memberCounts) {
+            List<Row> rows = new ArrayList<>(memberCounts.size());
+            for (Map.Entry<String, Integer> room : memberCounts.entrySet()) {
+                rows.add(new Row(room.getKey(), room.getValue()));
+            }
+            return new Snapshot(rows, null);
+        }
+
+        int size() {
+            return rows.length;
+        }
+
+        int pageCount() {
+            return (rows.length + PAGE_SIZE - 1) / PAGE_SIZE;
+        }
+
+        // The rooms whose names start with prefix, found by binary search over the names
+        Snapshot find(String prefix) {
+            int low = 0;
+            int high = byName.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (byName[mid].name().compareTo(prefix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            List<Row> matches = new ArrayList<>();
+            for (int i = low; i < byName.length && byName[i].name().startsWith(prefix); i++) {
+                matches.add(byName[i]);
+            }
+            return new Snapshot(matches, prefix);
+        }
+
+        // Page number page (from 0) as shown to the client, rendered once per snapshot
+        String page(int page) {
+            String rendered = pages.get(page);
+            if (rendered != null) {
+                return rendered;
+            }
+            StringBuilder text = new StringBuilder();
+            text.append(prefix == null ? "\nAvailable Rooms" : "\nRooms starting with \"" + prefix + "\"");
+            if (pageCount() > 1) {
+                text.append(" (page ").append(page + 1).append(" of ").append(pageCount())
+                    .append(", ").append(rows.length).append(" rooms)");
+            }
+            text.append(":\n");
+            for (int i = page * PAGE_SIZE; i < Math.min(rows.length, (page + 1) * PAGE_SIZE); i++) {
+                text.append("- ").append(rows[i].name()).append(" (").append(rows[i].members()).append(" members)\n");
+            }
+            if (pageCount() > 1) {
+                text.append("Type /page <n> for another page");
+                text.append(prefix == null ? ", /find <prefix> to filter.\n" : ".\n");
+            }
+            rendered = text.toString();
+            pages.set(page, rendered);
+            return rendered;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+// SearchIndex.java
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongPredicate;
+
+// Full-text index of one room's messages, for /search. Each term maps to a posting list of
+// the ids of the messages containing it, stored as varint gaps between ids. The room queues
+// each message as it is appended and a shared indexer thread adds it, so publishing never
+// waits on the index. If the indexer is so far behind that its queue is full, the message is
+// left out and the index marked stale; the room's next message first has the indexer read
+// the ones it missed back from the room's log. New messages go into an in-memory segment
+// that is sealed every SEGMENT_MESSAGES ids; once MERGE_FACTOR sealed segments of one level
+// pile up, a merger thread combines them into one of the next level, so even millions of
+// messages leave a few dozen segments to look at. Segments cover ordered, non-overlapping id ranges and a
+// query walks them newest first, stopping once it has enough matches.
+//
+// With a directory (rooms persisted under -Dchat.dataDir), sealed segments are written there
+// as <first seq>-<level>.sidx files and mapped read-only, so they cost no heap:
+//
+//   [int magic][long firstSeq][long endSeq][int level][int termCount][termCount x int entry offset]
+//   entries [short termLength][term][int postingsLength][postings], sorted by the terms' UTF-8 bytes
+//
+// The in-memory segment is not written; on startup the messages after the last written
+// segment are indexed again from the room's message log. Without a directory only the
+// messages still in the room's history can be shown, so sealed segments that end before it
+// are dropped rather than kept on the heap for good.
+public class SearchIndex {
+    static final int SEGMENT_MESSAGES = Integer.getInteger("chat.searchSegmentMessages", 4096);
+    static final int MERGE_FACTOR = Integer.getInteger("chat.searchMergeFactor", 8);
+    // Longer words are cut to this many characters, in messages and queries alike
+    static final int MAX_TERM_CHARS = 64;
+
+    private static final String SUFFIX = ".sidx";
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int HEADER_BYTES = 28;
+    private static final int REINDEX_PAGE = 1024;
+    private static final int MAX_BATCH = 4096;
+    // How long reading missed messages back waits for the log writer to get to them
+    private static final long CATCH_UP_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // A message to index; a null message asks for everything in the log below seq
+    private record Add(SearchIndex index, long seq, String message) {}
+
+    private static final BlockingQueue<Add> pending = new LinkedBlockingQueue<>(65536);
+    private static final ExecutorService merger = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Thread indexer = new Thread(SearchIndex::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    private final MessageLog.RoomLog log; // null without persistence
+    private final Path dir;               // null without persistence
+    private final int retain;             // without persistence: the newest ids worth keeping
+    // Sealed segments, oldest first. Replaced, never changed, under the index's lock.
+    private volatile List<Segment> segments = List.of();
+    // Guarded by the index's lock
+    private Active active = null;
+    // Indexer thread: id below which every message has been seen
+    private long nextSeq;
+    private volatile boolean retired = false;
+    // Set when a message could not be queued, guarded by the room lock
+    private boolean stale = false;
+
+    private SearchIndex(MessageLog.RoomLog log, long nextSeq, int retain) {
+        this.log = log;
+        this.dir = log == null ? null : log.dir.resolve("search");
+        this.nextSeq = nextSeq;
+        this.retain = retain;
+    }
+
+    // An empty index for a room whose next message gets id nextSeq. Segments left in the
+    // room's directory from an earlier stay on this node are dropped. Without a log, only
+    // the newest historyCapacity ids stay findable.
+    static SearchIndex create(MessageLog.RoomLog log, long nextSeq, int historyCapacity) throws IOException {
+        SearchIndex index = new SearchIndex(log, nextSeq, historyCapacity);
+        if (index.dir != null) {
+            Files.createDirectories(index.dir);
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(index.dir, "*" + SUFFIX)) {
+                for (Path path : stale) {
+                    Files.delete(path);
+                }
+            }
+        }
+        return index;
+    }
+
+    // Reopens a recovered room's index and queues the messages logged after its last segment
+    static SearchIndex recover(MessageLog.RoomLog log) throws IOException {
+        SearchIndex index = new SearchIndex(log, 0, 0);
+        Files.createDirectories(index.dir);
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(index.dir, "*" + SUFFIX)) {
+            for (Path path : files) {
+                try {
+                    found.add(Segment.map(path));
+                } catch (IOException e) {
+                    // Cut short by a crash; the messages are indexed again from the log
+                    Files.delete(path);
+                }
+            }
+        }
+        // A merge interrupted by a crash leaves its inputs next to the merged segment
+        found.sort(Comparator.<Segment>comparingLong(segment -> segment.firstSeq)
+            .thenComparing(Comparator.comparingLong((Segment segment) -> segment.endSeq).reversed()));
+        List<Segment> kept = new ArrayList<>();
+        for (Segment segment : found) {
+            if (!kept.isEmpty() && segment.firstSeq < kept.get(kept.size() - 1).endSeq) {
+                Files.delete(segment.path);
+            } else {
+                kept.add(segment);
+            }
+        }
+        index.segments = List.copyOf(kept);
+        index.nextSeq = kept.isEmpty() ? 0 : kept.get(kept.size() - 1).endSeq;
+        if (!pending.offer(new Add(index, log.nextSeq(), null))) {
+            index.stale = true;
+        }
+        merger.execute(index::merge);
+        return index;
+    }
+
+    // Queues a message for indexing. Called under the room lock, so ids arrive in order.
+    // Never waits: with the queue full the message is counted as dropped instead.
+    void add(long seq, String message) {
+        if (stale) {
+            // The messages missed since are read back from the log; without one they stay unfindable
+            if (log != null && !pending.offer(new Add(this, seq, null))) {
+                Metrics.searchDropped.increment();
+                return;
+            }
+            stale = false;
+        }
+        if (!pending.offer(new Add(this, seq, message))) {
+            Metrics.searchDropped.increment();
+            stale = true;
+        }
+    }
+
+    // The room moved to another cluster node; whatever is still queued is ignored
+    void retire() {
+        retired = true;
+    }
+
+    // Ids of up to limit of the newest messages containing every term of query that shown
+    // accepts, newest first. Messages still queued for the indexer are not found yet.
+    long[] search(String query, int limit, LongPredicate shown) {
+        List<String> terms = terms(query);
+        if (terms.isEmpty()) {
+            return new long[0];
+        }
+        List<Segment> sealed;
+        long[][] recent = new long[terms.size()][];
+        synchronized (this) {
+            sealed = segments;
+            for (int i = 0; i < recent.length; i++) {
+                Postings postings = active == null ? null : active.terms.get(terms.get(i));
+                recent[i] = postings == null ? new long[0] : postings.decode();
+            }
+        }
+
+        byte[][] keys = new byte[terms.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        long[] found = new long[limit];
+        int count = intersect(recent, found, 0, shown);
+        for (int s = sealed.size() - 1; s >= 0 && count < limit; s--) {
+            Segment segment = sealed.get(s);
+            long[][] lists = new long[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                lists[i] = segment.postings(keys[i]);
+            }
+            count = intersect(lists, found, count, shown);
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // Appends the ids in every list that shown accepts to found, newest first, until it is full
+    private static int intersect(long[][] lists, long[] found, int count, LongPredicate shown) {
+        long[] shortest = lists[0];
+        for (long[] list : lists) {
+            if (list.length < shortest.length) {
+                shortest = list;
+            }
+        }
+        for (int i = shortest.length - 1; i >= 0 && count < found.length; i--) {
+            boolean everywhere = true;
+            for (long[] list : lists) {
+                if (list != shortest && Arrays.binarySearch(list, shortest[i]) < 0) {
+                    everywhere = false;
+                    break;
+                }
+            }
+            if (everywhere && shown.test(shortest[i])) {
+                found[count++] = shortest[i];
+            }
+        }
+        return count;
+    }
+
+    // Lower-cased runs of letters and digits, each once, in order of appearance
+    static List<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_CHARS) {
+                    term.appendCodePoint(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return new ArrayList<>(terms);
+    }
+
+    private static void indexLoop() {
+        List<Add> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending.drainTo(batch, MAX_BATCH);
+            for (Add add : batch) {
+                SearchIndex index = add.index();
+                if (index.retired) {
+                    continue;
+                }
+                try {
+                    if (add.message() == null) {
+                        index.reindex(add.seq());
+                    } else {
+                        index.index(add.seq(), add.message());
+                    }
+                } catch (IOException e) {
+                    System.out.println("Could not index messages in " + index.dir + ": " + e.getMessage());
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // Indexer thread: messages from the log with ids in [nextSeq, endSeq). Those the log
+    // writer has not got to within CATCH_UP_WAIT_NANOS, or never will, are skipped.
+    private void reindex(long endSeq) throws IOException {
+        long from = Math.max(nextSeq, log.firstSeq());
+        long deadline = System.nanoTime() + CATCH_UP_WAIT_NANOS;
+        while (from < endSeq && !retired) {
+            if (log.nextSeq() <= from) {
+                if (log.isStopped() || System.nanoTime() - deadline > 0) {
+                    break;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            List<MessageLog.Record> records = log.readBefore(Math.min(from + REINDEX_PAGE, endSeq), REINDEX_PAGE);
+            if (records.isEmpty()) {
+                break;
+            }
+            for (MessageLog.Record record : records) {
+                if (!Server.ChatRoom.isPresence(record.body())) {
+                    index(record.seq(), record.body());
+                }
+            }
+            from = records.get(records.size() - 1).seq() + 1;
+        }
+        nextSeq = Math.max(nextSeq, endSeq);
+    }
+
+    // Indexer thread
+    private void index(long seq, String message) throws IOException {
+        if (seq < nextSeq) {
+            return; // already read back from the log
+        }
+        nextSeq = seq + 1;
+        List<String> terms = terms(message);
+        Active current;
+        synchronized (this) {
+            if (active == null) {
+                active = new Active(seq);
+            }
+            current = active;
+            for (String term : terms) {
+                current.terms.computeIfAbsent(term, t -> new Postings(current.firstSeq)).add(seq);
+            }
+            current.endSeq = seq + 1;
+        }
+        if (current.endSeq - current.firstSeq >= SEGMENT_MESSAGES) {
+            seal(current);
+        }
+    }
+
+    // Indexer thread: writes the in-memory segment out and starts a new one
+    private void seal(Active sealing) throws IOException {
+        // Only this thread changes the segment, so it can be read without the lock
+        TreeMap<byte[], Postings> sorted = new TreeMap<>(Arrays::compareUnsigned);
+        for (Map.Entry<String, Postings> term : sealing.terms.entrySet()) {
+            sorted.put(term.getKey().getBytes(StandardCharsets.UTF_8), term.getValue());
+        }
+        Segment segment = write(sorted, sealing.firstSeq, sealing.endSeq, 0);
+        synchronized (this) {
+            List<Segment> sealed = new ArrayList<>(segments);
+            sealed.add(segment);
+            if (dir == null) {
+                // Out of the history, and with no log to read them from
+                long oldestShown = sealing.endSeq - retain;
+                sealed.removeIf(old -> old.endSeq <= oldestShown);
+            }
+            segments = List.copyOf(sealed);
+            active = null;
+        }
+        merger.execute(this::merge);
+    }
+
+    // Merger thread: combines runs of MERGE_FACTOR segments of the same level, newest first
+    private void merge() {
+        while (!retired) {
+            List<Segment> current = segments;
+            int end = current.size();
+            while (end >= MERGE_FACTOR && !sameLevel(current, end - MERGE_FACTOR, end)) {
+                end--;
+            }
+            if (end < MERGE_FACTOR) {
+                return;
+            }
+            List<Segment> run = current.subList(end - MERGE_FACTOR, end);
+            Segment merged;
+            try {
+                merged = merge(run);
+            } catch (IOException e) {
+                System.out.println("Could not merge search segments in " + dir + ": " + e.getMessage());
+                return;
+            }
+            synchronized (this) {
+                // Only the indexer changes the list meanwhile: it adds to the end, and without
+                // a directory drops from the front, maybe the start of this run
+                List<Segment> sealed = new ArrayList<>(segments);
+                int start = sealed.indexOf(run.get(0));
+                if (start < 0) {
+                    continue;
+                }
+                sealed.subList(start, start + MERGE_FACTOR).clear();
+                sealed.add(start, merged);
+                segments = List.copyOf(sealed);
+            }
+            for (Segment segment : run) {
+                if (segment.path != null) {
+                    try {
+                        Files.deleteIfExists(segment.path);
+                    } catch (IOException e) {
+                        System.out.println("Could not delete search segment " + segment.path + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean sameLevel(List<Segment> segments, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            if (segments.get(i).level != segments.get(from).level) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Segment merge(List<Segment> run) throws IOException {
+        long firstSeq = run.get(0).firstSeq;
+        TreeMap<byte[], Postings> merged = new TreeMap<>(Arrays::compareUnsigned);
+        for (Segment segment : run) {
+            for (int t = 0; t < segment.termCount(); t++) {
+                int entry = segment.entryOffset(t);
+                byte[] term = segment.term(entry);
+                Postings postings = merged.computeIfAbsent(term, key -> new Postings(firstSeq));
+                for (long seq : segment.decode(entry)) {
+                    postings.add(seq);
+                }
+            }
+        }
+        return write(merged, firstSeq, run.get(run.size() - 1).endSeq, run.get(0).level + 1);
+    }
+
+    // Lays out a segment, and with a directory writes it there and maps it back
+    private Segment write(SortedMap<byte[], Postings> terms, long firstSeq, long endSeq, int level) throws IOException {
+        int size = HEADER_BYTES + terms.size() * 4;
+        for (Map.Entry<byte[], Postings> term : terms.entrySet()) {
+            size += 2 + term.getKey().length + 4 + term.getValue().length;
+        }
+        ByteBuffer data = ByteBuffer.allocate(size);
+        data.putInt(MAGIC).putLong(firstSeq).putLong(endSeq).putInt(level).putInt(terms.size());
+        int entry = HEADER_BYTES + terms.size() * 4;
+        for (Map.Entry<byte[], Postings> term : terms.entrySet()) {
+            data.putInt(entry);
+            entry += 2 + term.getKey().length + 4 + term.getValue().length;
+        }
+        for (Map.Entry<byte[], Postings> term : terms.entrySet()) {
+            Postings postings = term.getValue();
+            data.putShort((short) term.getKey().length).put(term.getKey());
+            data.putInt(postings.length).put(postings.bytes, 0, postings.length);
+        }
+        data.flip();
+        if (dir == null) {
+            return new Segment(data.asReadOnlyBuffer(), null);
+        }
+
+        // Written aside and renamed, so a crash never leaves half a segment under its real name
+        // Named by level too: a merged segment starts where its first input does
+        Path path = dir.resolve(String.format("%020d-%d", firstSeq, level) + SUFFIX);
+        Path temporary = dir.resolve(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Segment.map(path);
+    }
+
+    // The segment being filled, in memory
+    private static final class Active {
+        final long firstSeq;
+        long endSeq;
+        final Map<String, Postings> terms = new HashMap<>();
+
+        Active(long firstSeq) {
+            this.firstSeq = firstSeq;
+            this.endSeq = firstSeq;
+        }
+    }
+
+    // A growing posting list: ascending ids as varint gaps, the first one from firstSeq - 1
+    private static final class Postings {
+        final long base;
+        byte[] bytes = new byte[4];
+        int length = 0;
+        long last;
+
+        Postings(long firstSeq) {
+            this.base = firstSeq - 1;
+            this.last = base;
+        }
+
+        void add(long seq) {
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            long gap = seq - last;
+            while (gap >= 0x80) {
+                bytes[length++] = (byte) (gap | 0x80);
+                gap >>>= 7;
+            }
+            bytes[length++] = (byte) gap;
+            last = seq;
+        }
+
+        long[] decode() {
+            return SearchIndex.decode(ByteBuffer.wrap(bytes, 0, length), 0, length, base);
+        }
+    }
+
+    // A sealed segment, on the heap or mapped from its file
+    private static final class Segment {
+        final ByteBuffer data;
+        final Path path; // null when not persisted
+        final long firstSeq;
+        final long endSeq;
+        final int level;
+
+        Segment(ByteBuffer data, Path path) throws IOException {
+            if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+                throw new IOException("Not a search segment");
+            }
+            this.data = data;
+            this.path = path;
+            this.firstSeq = data.getLong(4);
+            this.endSeq = data.getLong(12);
+            this.level = data.getInt(20);
+        }
+
+        static Segment map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new Segment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path);
+            }
+        }
+
+        int termCount() {
+            return data.getInt(24);
+        }
+
+        int entryOffset(int t) {
+            return data.getInt(HEADER_BYTES + t * 4);
+        }
+
+        byte[] term(int entry) {
+            byte[] term = new byte[data.getShort(entry) & 0xFFFF];
+            data.get(entry + 2, term);
+            return term;
+        }
+
+        long[] decode(int entry) {
+            int postings = entry + 2 + (data.getShort(entry) & 0xFFFF);
+            return SearchIndex.decode(data, postings + 4, data.getInt(postings), firstSeq - 1);
+        }
+
+        // Ids of the messages containing term: a binary search over the sorted terms
+        long[] postings(byte[] term) {
+            int low = 0;
+            int high = termCount() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int entry = entryOffset(mid);
+                int compared = compare(entry, term);
+                if (compared < 0) {
+                    low = mid + 1;
+                } else if (compared > 0) {
+                    high = mid - 1;
+                } else {
+                    return decode(entry);
+                }
+            }
+            return new long[0];
+        }
+
+        // Unsigned byte order, same as the TreeMaps segments are written from
+        private int compare(int entry, byte[] term) {
+            int length = data.getShort(entry) & 0xFFFF;
+            for (int i = 0; i < Math.min(length, term.length); i++) {
+                int compared = Byte.compareUnsigned(data.get(entry + 2 + i), term[i]);
+                if (compared != 0) {
+                    return compared;
+                }
+            }
+            return Integer.compare(length, term.length);
+        }
+    }
+
+    private static long[] decode(ByteBuffer data, int offset, int length, long base) {
+        long[] seqs = new long[Math.max(4, length / 2)];
+        int count = 0;
+        long seq = base;
+        for (int position = offset; position < offset + length; ) {
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(position++);
+                gap |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            seq += gap;
+            if (count == seqs.length) {
+                seqs = Arrays.copyOf(seqs, count * 2);
+            }
+            seqs[count++] = seq;
+        }
+        return Arrays.copyOf(seqs, count);
+    }
+}
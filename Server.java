@@ -2,412 +2,1843 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 
 public class Server {
     // Stores all connected users
-    private final static Map<String, ClientHandler> clients = new HashMap<>();
-    // Stores passwords for users
-    private final static Map<String, String> userPasswords = new HashMap<>();
+    private final static Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    // Stores accounts (salted password hashes, see PasswordHasher) and friend lists
+    private static UserStore users;
 
 
-    // Stores all rooms by name
-    private final static Map<String, ChatRoom> rooms = new HashMap<>();
+    // Stores all rooms by name. Concurrent maps, so there is no server-wide lock:
+    // each ChatRoom guards its own state.
+    private final static Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    // Rooms reclaimed while empty whose history is still on disk, loaded again when someone
+    // asks for them (see findRoom). A room is put here before it leaves rooms and back in
+    // rooms before it leaves here, so it is always in one of them.
+    private final static Map<String, Dormant> dormant = new ConcurrentHashMap<>();
+
+    // A reclaimed room's log directory, and when the log has finished closing
+    private record Dormant(Path dir, CompletableFuture<Void> unloaded) {}
+    // Dormant rooms being loaded, so joins racing for one room share its load while other
+    // rooms load alongside. A load is removed once its room is back in rooms.
+    private final static Map<String, CompletableFuture<ChatRoom>> loading = new ConcurrentHashMap<>();
+    // Reads dormant rooms back from disk, off the threads that serve sockets
+    private final static ExecutorService roomLoader = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "room-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Reads pages of room logs for the event loops (see ClientHandler.onDisk). Past
+    // DISK_READ_QUEUE waiting reads the client is told the server is busy.
+    private static final int DISK_READ_QUEUE = 1024;
+    private final static ExecutorService diskReader = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(DISK_READ_QUEUE), runnable -> {
+            Thread thread = new Thread(runnable, "disk-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // Empty-room reclamation, session timeouts and heartbeats
+    static final TimerWheel timers = new TimerWheel("timer-wheel");
+    // How long a room may stay empty before it is reclaimed, 0 keeps rooms forever
+    static final long EMPTY_ROOM_TTL_MILLIS = Long.getLong("chat.emptyRoomTtlMillis", 600_000);
+
+    // Paged room list for "Join a Room", rebuilt only after rooms change
+    private final static RoomDirectory directory = new RoomDirectory(rooms.values(), dormant.keySet());
+
+    // Durable room history, null unless -Dchat.dataDir is set
+    private static MessageLog messageLog = null;
+
+    // The other server nodes sharing rooms and users with this one, null unless -Dchat.clusterPort is set
+    private static Cluster cluster = null;
+
+    // Friends' online/offline notices
+    private static final Presence presence = new Presence();
+    // Private messages, and the mailboxes of offline users (DIR/mail.db with -Dchat.dataDir)
+    private static DirectMessages directMessages;
 
     // ChatRoom structure
     static class ChatRoom {
         String roomName;
         String password;
-        Set<ClientHandler> members = new HashSet<>();
-        
-        // 2D array for chat history: [messageIndex][0] = username, [messageIndex][1] = message
-        String[][] messageHistory = new String[100][2];
-        int messageCount = 0; // Tracks how many messages are stored
+        // Concurrent set: joins, leaves and broadcasts in this room never wait on each other
+        final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+        // Serializes history appends; joiners read the history without it
+        final ReentrantLock lock = new ReentrantLock();
+
+        // Most recent messages, oldest first
+        final ChatHistory history;
+        // Persisted copy of every message, null when persistence is off. Set under lock.
+        MessageLog.RoomLog log = null;
+        // Full-text index for /search, null while another node owns the room. Set under lock.
+        SearchIndex search = null;
+
+        // Messages published to this room while this node owns it, and copies of its
+        // messages queued to members here (see Metrics)
+        final LongAdder messagesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder();
+        // Chat messages its members may send, together (checked by their handlers, before the fan-out)
+        final RateLimiter sendLimiter = RateLimiter.forRoom();
+
+        // Cluster mode: set when another node owns the room. That node numbers and stores its
+        // messages, this copy only holds the members connected here (see Cluster).
+        volatile boolean remote = false;
+        // Owner side: the other nodes with members in the room
+        final Set<String> subscribers = ConcurrentHashMap.newKeySet();
+        // Remote side: joins still waiting for the owner's answer. Guarded by lock.
+        int pendingJoins = 0;
+        // Pending reclamation while the room is empty, and whether it has happened. Guarded by lock.
+        private TimerWheel.Timeout reclaim = null;
+        private boolean reclaimed = false;
 
         ChatRoom(String name, String password) {
+            this(name, password, ChatHistory.capacityFor(name));
+        }
+
+        ChatRoom(String name, String password, int historyCapacity) {
             this.roomName = name;
             this.password = password;
+            this.history = new ChatHistory(historyCapacity);
+        }
+
+        // False if the room has been reclaimed since it was looked up
+        boolean join(ClientHandler member) {
+            lock.lock();
+            try {
+                if (reclaimed) {
+                    return false;
+                }
+                members.add(member);
+                if (reclaim != null) {
+                    reclaim.cancel();
+                    reclaim = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            directory.changed();
+            // Also covers a room handed to another node while the member was joining
+            if (remote) {
+                cluster.subscribe(this);
+            }
+            return true;
+        }
+
+        void leave(ClientHandler member) {
+            if (members.remove(member)) {
+                directory.changed();
+                if (remote) {
+                    cluster.unsubscribe(this);
+                } else if (members.isEmpty()) {
+                    scheduleReclaim();
+                }
+            }
+        }
+
+        // Reclaims the room once it has been empty for EMPTY_ROOM_TTL_MILLIS. Not in cluster
+        // mode, where the owner of a room does not know about members on other nodes.
+        void scheduleReclaim() {
+            if (EMPTY_ROOM_TTL_MILLIS <= 0 || cluster != null) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (members.isEmpty() && !reclaimed && reclaim == null) {
+                    reclaim = timers.schedule(this::reclaimIfEmpty, EMPTY_ROOM_TTL_MILLIS);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Timer wheel thread. A persisted room becomes dormant: its log is closed and it is
+        // loaded from disk again when asked for. Without persistence it is gone.
+        private void reclaimIfEmpty() {
+            lock.lock();
+            try {
+                reclaim = null;
+                if (!members.isEmpty() || reclaimed || remote) {
+                    return;
+                }
+                if (log != null) {
+                    CompletableFuture<Void> unloaded = messageLog.unload(log);
+                    if (unloaded == null) {
+                        // The log writer is too far behind to take the close; try again next tick
+                        reclaim = timers.schedule(this::reclaimIfEmpty, TimerWheel.TICK_MILLIS);
+                        return;
+                    }
+                    dormant.put(roomName, new Dormant(log.dir, unloaded));
+                    log = null;
+                }
+                reclaimed = true;
+                if (search != null) {
+                    search.retire();
+                    search = null;
+                }
+                rooms.remove(roomName, this);
+            } finally {
+                lock.unlock();
+            }
+            directory.changed();
+            Metrics.roomsReclaimed.increment();
+        }
+
+        int memberCount() {
+            return members.size();
         }
 
         void broadcast(String message, ClientHandler sender) {
-            // Add message to history (automatically removes oldest if full)
-            addToHistory(sender.username, message);
-            
+            publish(message, sender.username, null);
+        }
+
+        // "joined the room." / "left the room." notice; binary members get a PRESENCE frame
+        void broadcastPresence(ClientHandler sender, boolean joined) {
+            publish(joined ? "joined the room.\n" : "left the room.", sender.username, joined);
+        }
+
+        // The "joined the room." / "left the room." notices kept in the history; /search skips them
+        static boolean isPresence(String message) {
+            return message.equals("joined the room.\n") || message.equals("left the room.");
+        }
+
+        // joined is null for a chat message
+        void publish(String message, String sender, Boolean joined) {
+            // Cut to what a frame can carry, so every stored message can be replayed to binary members
+            message = Frames.fit(message);
+            Metrics.BroadcastEvent event = Metrics.recording ? new Metrics.BroadcastEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            long started = System.nanoTime();
+            long timestamp = System.currentTimeMillis();
+            long seq;
+            lock.lock();
+            try {
+                // The last member's "left the room." can arrive after the room was reclaimed
+                if (reclaimed) {
+                    return;
+                }
+                // Add message to history (automatically removes oldest if full), unless another node owns it
+                seq = remote ? -1 : addToHistory(timestamp, sender, message);
+            } finally {
+                lock.unlock();
+            }
+            if (seq < 0) {
+                cluster.publish(this, sender, message, joined);
+                return;
+            }
+            // Counted by the owner only, so the nodes' totals add up to the messages sent
+            messagesIn.increment();
+            Metrics.messagesIn.increment();
+
+            if (!subscribers.isEmpty()) {
+                cluster.fanOut(this, seq, timestamp, sender, message, joined);
+            }
+            deliver(seq, timestamp, sender, message, joined, started, event);
+        }
+
+        // A message published by the owner of a remote room, for the members on this node
+        void deliver(long seq, long timestamp, String sender, String message, Boolean joined) {
+            Metrics.BroadcastEvent event = Metrics.recording ? new Metrics.BroadcastEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            deliver(seq, timestamp, sender, message, joined, System.nanoTime(), event);
+        }
+
+        private void deliver(long seq, long timestamp, String sender, String message, Boolean joined,
+                long started, Metrics.BroadcastEvent event) {
+            // Format and encode once per protocol; every member's queue shares the same read-only bytes
+            ByteBuffer line = null;
+            ByteBuffer frame = null;
+            int recipients = 0;
+
             // Broadcast to other members
             for (ClientHandler member : members) {
-                if (member != sender) {
-                    if (message.endsWith("joined the room.") || message.endsWith("left the room.")) {
-                        member.out.println(sender.username + " " + message);
-                    } else {
-                        member.out.println("[" + sender.username + "]: " + message);
+                if (sender.equals(member.username)) {
+                    continue;
+                }
+                recipients++;
+                if (member.binary) {
+                    if (frame == null) {
+                        frame = joined != null
+                            ? Frames.presence(roomName, sender, joined)
+                            : Frames.message(seq, timestamp, roomName, sender, message);
+                    }
+                    member.outbound.offer(frame);
+                } else {
+                    if (line == null) {
+                        line = OutboundQueue.encode(formatLine(message, sender) + "\n");
                     }
+                    member.outbound.offer(line);
                 }
             }
+
+            recordBroadcast(started, recipients, event);
+        }
+
+        // Kept out of deliver so its member loop stays small enough to inline. Runs on every
+        // node with members in the room; messages in are counted in publish, by the owner.
+        private void recordBroadcast(long started, int recipients, Metrics.BroadcastEvent event) {
+            messagesOut.add(recipients);
+            Metrics.messagesOut.add(recipients);
+            Metrics.broadcastNanos.record(System.nanoTime() - started);
+            if (event != null && event.shouldCommit()) {
+                event.room = roomName;
+                event.recipients = recipients;
+                event.commit();
+            }
+        }
+
+        private static String formatLine(String message, String sender) {
+            if (message.endsWith("joined the room.") || message.endsWith("left the room.")) {
+                return sender + " " + message;
+            }
+            return "[" + sender + "]: " + message;
         }
 
         // New method to send history to a specific client
         public void sendHistoryToNewMember(ClientHandler newMember) {
-            if (messageCount > 0) {
-                newMember.out.println("\n=== Room History ===");
-                for (int i = 0; i < messageCount; i++) {
-                    newMember.out.println("["+ messageHistory[i][0] +"] : " + messageHistory[i][1]);
+            ByteBuffer replay = newMember.binary ? history.replayFrame(roomName) : history.replay();
+            if (replay != null) {
+                newMember.send(replay);
+            }
+        }
+
+        private long addToHistory(long timestamp, String username, String message) {
+            // Oldest message is overwritten once the history is full
+            long seq = history.append(username, message);
+            // The log only queues the record, the disk write happens on its own thread
+            if (log != null && !log.append(seq, timestamp, username, message)) {
+                Metrics.logDropped.increment();
+            }
+            // Indexed on the search thread as well
+            if (search != null && !isPresence(message)) {
+                search.add(seq, message);
+            }
+            return seq;
+        }
+
+        // Up to limit messages with ids below beforeSeq, oldest first, read from the message log when there is one
+        List<ChatHistory.Entry> historyBefore(long beforeSeq, int limit) throws IOException {
+            if (log == null) {
+                return history.before(beforeSeq, limit);
+            }
+            List<ChatHistory.Entry> cached = historyInMemory(beforeSeq, limit);
+            if (cached != null) {
+                return cached;
+            }
+            List<ChatHistory.Entry> entries = new ArrayList<>();
+            // Messages not written yet, or never if the log has stopped taking them, are in memory
+            long written = log.nextSeq();
+            if (beforeSeq > written) {
+                for (ChatHistory.Entry entry : history.before(beforeSeq, limit)) {
+                    if (entry.seq() >= written) {
+                        entries.add(entry);
+                    }
                 }
-                newMember.out.println("===================");
-                newMember.out.flush();
             }
+            List<ChatHistory.Entry> older = new ArrayList<>();
+            for (MessageLog.Record record : log.readBefore(Math.min(beforeSeq, written), limit - entries.size())) {
+                older.add(new ChatHistory.Entry(record.seq(), record.sender(), record.body()));
+            }
+            entries.addAll(0, older);
+            // A room handed over by another cluster node is only logged from then on,
+            // the messages before that are still in memory
+            if (entries.size() < limit) {
+                long logged = entries.isEmpty() ? Math.min(beforeSeq, log.firstSeq()) : entries.get(0).seq();
+                entries.addAll(0, history.before(logged, limit - entries.size()));
+            }
+            return entries;
         }
 
-        private void addToHistory(String username, String message) {
-            // If history is full, shift all messages left (removing oldest)
-            if (messageCount >= 100) {
-                System.arraycopy(messageHistory, 1, messageHistory, 0, 99);
-                messageCount--;
+        // The page historyBefore returns if the history holds all of it, or null if it takes the log
+        List<ChatHistory.Entry> historyInMemory(long beforeSeq, int limit) {
+            List<ChatHistory.Entry> entries = history.before(beforeSeq, limit);
+            return entries.size() == Math.min(limit, Math.min(beforeSeq, nextSeq())) ? entries : null;
+        }
+
+        static String formatPage(long beforeSeq, int limit, List<ChatHistory.Entry> entries) {
+            if (entries.isEmpty()) {
+                return "No older messages.\n";
+            }
+            StringBuilder page = new StringBuilder();
+            for (ChatHistory.Entry entry : entries) {
+                appendPageLine(page, entry.seq(), entry.username(), entry.message());
             }
-            
-            // Add new message at the end
-            messageHistory[messageCount][0] = username;
-            messageHistory[messageCount][1] = message;
-            messageCount++;
+            long oldest = entries.get(0).seq();
+            return "\n=== " + entries.size() + " messages before #" + beforeSeq + " ===\n"
+                + page
+                + (oldest == 0 ? "=== Start of the room ===\n" : "=== Older: /history " + limit + " before " + oldest + " ===\n");
+        }
+
+        private static void appendPageLine(StringBuilder page, long seq, String username, String message) {
+            page.append("#").append(seq).append(" [").append(username).append("]: ").append(message).append("\n");
+        }
+
+        // Up to limit of the newest messages containing every term of query, oldest first.
+        // Matches no longer in the history are read from the message log.
+        List<ChatHistory.Entry> search(String query, int limit) throws IOException {
+            List<ChatHistory.Entry> found = new ArrayList<>();
+            SearchIndex index = search;
+            if (index == null) {
+                return found;
+            }
+            long started = System.nanoTime();
+            // Only ids that can still be read count towards limit
+            MessageLog.RoomLog logged = log;
+            LongPredicate shown = seq -> history.get(seq) != null
+                || (logged != null && seq >= logged.firstSeq() && seq < logged.nextSeq());
+            for (long seq : index.search(query, limit, shown)) {
+                ChatHistory.Entry entry = history.get(seq);
+                if (entry == null && log != null) {
+                    // Gone if the log has dropped its segment since
+                    for (MessageLog.Record record : log.readBefore(seq + 1, 1)) {
+                        if (record.seq() == seq) {
+                            entry = new ChatHistory.Entry(record.seq(), record.sender(), record.body());
+                        }
+                    }
+                }
+                if (entry != null) {
+                    found.add(0, entry);
+                }
+            }
+            Metrics.searchNanos.record(System.nanoTime() - started);
+            return found;
+        }
+
+        static String formatSearch(String query, List<ChatHistory.Entry> entries) {
+            if (entries.isEmpty()) {
+                return "No messages match \"" + query + "\".\n";
+            }
+            StringBuilder page = new StringBuilder();
+            for (ChatHistory.Entry entry : entries) {
+                appendPageLine(page, entry.seq(), entry.username(), entry.message());
+            }
+            return "\n=== " + entries.size() + " messages matching \"" + query + "\" ===\n"
+                + page
+                + "=== Context: /history <n> before <msgId> ===\n";
+        }
+
+        // Id the next message in this room will get
+        long nextSeq() {
+            return history.nextSeq();
         }
 
         public String getFormattedHistory() {
-            StringBuilder history = new StringBuilder();
-            history.append("\n=== Last ").append(messageCount).append(" messages ===\n");
-            
-            for (int i = 0; i < messageCount; i++) {
-                history.append("[").append(messageHistory[i][0])
-                    .append("]: ").append(messageHistory[i][1])
+            List<ChatHistory.Entry> entries = history.snapshot();
+            StringBuilder formatted = new StringBuilder();
+            formatted.append("\n=== Last ").append(entries.size()).append(" messages ===\n");
+
+            for (ChatHistory.Entry entry : entries) {
+                formatted.append("[").append(entry.username())
+                    .append("]: ").append(entry.message())
                     .append("\n");
             }
-            
-            history.append("=======================");
-            return history.toString();
+
+            formatted.append("=======================");
+            return formatted.toString();
+        }
+    }
+
+    // Pending connections the OS may hold while the accept loop catches up (login storms)
+    static final int ACCEPT_BACKLOG = 1024;
+
+    // Responses are already batched into one write, so Nagle's algorithm would only add delay
+    static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true"));
+    // Kernel socket buffer sizes, 0 keeps the OS default
+    static final int SEND_BUFFER_BYTES = Integer.getInteger("chat.sendBufferBytes", 0);
+    static final int RECEIVE_BUFFER_BYTES = Integer.getInteger("chat.receiveBufferBytes", 0);
+
+    // Applies the TCP options to an accepted client socket
+    static void tuneSocket(Socket socket) {
+        try {
+            socket.setTcpNoDelay(TCP_NO_DELAY);
+            if (SEND_BUFFER_BYTES > 0) {
+                socket.setSendBufferSize(SEND_BUFFER_BYTES);
+            }
+        } catch (SocketException e) {
+            // Already closed by the client; its handler finds out on the first read
         }
     }
 
     public static void main(String[] args) {
-        int port = 12345;
+        int port = Integer.getInteger("chat.port", 12345);
+
+        String dataDir = System.getProperty("chat.dataDir");
+        try {
+            if (dataDir != null) {
+                messageLog = new MessageLog(Paths.get(dataDir));
+                recoverRooms();
+            }
+            users = new UserStore(dataDir != null ? Paths.get(dataDir, "users.db") : null);
+            directMessages = new DirectMessages(dataDir != null ? Paths.get(dataDir, "mail.db") : null);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        // Write out anything still queued when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::flushStores));
+        int clusterPort = Integer.getInteger("chat.clusterPort", 0);
+        if (clusterPort > 0) {
+            String address = System.getProperty("chat.clusterHost", "localhost") + ":" + clusterPort;
+            try {
+                cluster = new Cluster(address, rooms, clients, messageLog, presence, directMessages);
+                presence.cluster = cluster;
+                directory.cluster = cluster;
+                cluster.start(System.getProperty("chat.clusterSeeds", ""));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        // Recovered rooms start out empty
+        for (ChatRoom room : rooms.values()) {
+            room.scheduleReclaim();
+        }
+        if (Metrics.ADMIN_PORT > 0) {
+            try {
+                Metrics.startAdminServer(Metrics.ADMIN_PORT, () -> Metrics.render(rooms.values(), clients.values()));
+            } catch (IOException e) {
+                System.out.println("Metrics endpoint not started: " + e.getMessage());
+            }
+        }
+        // "thread" and "virtual" run one blocking handler per client, "nio" runs selector event loops
+        String mode = System.getProperty("chat.mode", "thread");
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started on port " + port + "...");
+        if ("nio".equalsIgnoreCase(mode)) {
+            int loops = Integer.getInteger("chat.eventLoops", Runtime.getRuntime().availableProcessors());
+            try {
+                new EventLoopServer(port, loops).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        ExecutorService executor = newHandlerExecutor(mode);
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            // Accepted sockets inherit the receive buffer, and it has to be set before bind to take effect
+            if (RECEIVE_BUFFER_BYTES > 0) {
+                serverSocket.setReceiveBufferSize(RECEIVE_BUFFER_BYTES);
+            }
+            serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            System.out.println("Server started on port " + port + " (" + mode + ")...");
 
             while (true) {
                 Socket socket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(socket);
-                new Thread(handler).start();
+                tuneSocket(socket);
+                ClientHandler handler = new ClientHandler(socket, executor);
+                executor.execute(handler);
             }
 
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void flushStores() {
+        try {
+            users.flush();
+            directMessages.flush();
+            if (messageLog != null) {
+                messageLog.close();
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
         }
     }
 
-    // Handles each client
+    // Rebuilds rooms and their recent history from the message log
+    private static void recoverRooms() throws IOException {
+        long start = System.nanoTime();
+        long messages = 0;
+        for (MessageLog.RecoveredRoom recovered : messageLog.recover(ChatHistory::capacityFor)) {
+            ChatRoom room = restoreRoom(recovered);
+            rooms.put(room.roomName, room);
+            messages += recovered.nextSeq();
+        }
+        System.out.println("Recovered " + rooms.size() + " rooms (" + messages + " messages) in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+
+    // A room rebuilt from its log, with its recent history and search index
+    private static ChatRoom restoreRoom(MessageLog.RecoveredRoom recovered) {
+        ChatRoom room = new ChatRoom(recovered.name(), recovered.password());
+        List<ChatHistory.Entry> recent = new ArrayList<>();
+        for (MessageLog.Record record : recovered.recent()) {
+            recent.add(new ChatHistory.Entry(record.seq(), record.sender(), record.body()));
+        }
+        room.history.restore(recovered.nextSeq(), recent);
+        room.log = recovered.log();
+        try {
+            room.search = SearchIndex.recover(room.log);
+        } catch (IOException e) {
+            System.out.println("Room " + room.roomName + " will not be searchable: " + e.getMessage());
+        }
+        return room;
+    }
+
+    // The room called name on this node, loading it from disk on roomLoader if it was
+    // reclaimed while empty. Completes at once unless it has to be loaded; null if there is
+    // no such room.
+    static CompletableFuture<ChatRoom> findRoom(String name) {
+        ChatRoom room = rooms.get(name);
+        if (room != null || !dormant.containsKey(name)) {
+            return CompletableFuture.completedFuture(room);
+        }
+        CompletableFuture<ChatRoom> load = new CompletableFuture<>();
+        CompletableFuture<ChatRoom> running = loading.putIfAbsent(name, load);
+        if (running != null) {
+            return running;
+        }
+        roomLoader.execute(() -> {
+            ChatRoom loaded = null;
+            try {
+                loaded = loadRoom(name);
+            } finally {
+                // Later lookups find the room in rooms from here on
+                loading.remove(name, load);
+                load.complete(loaded);
+            }
+        });
+        return load;
+    }
+
+    // roomLoader thread, at most one per name (see findRoom)
+    private static ChatRoom loadRoom(String name) {
+        ChatRoom room = rooms.get(name);
+        Dormant sleeping = dormant.get(name);
+        if (room != null || sleeping == null) {
+            return room;
+        }
+        try {
+            sleeping.unloaded().join();
+            MessageLog.RecoveredRoom recovered = messageLog.reopen(sleeping.dir(), ChatHistory::capacityFor);
+            if (recovered == null) {
+                dormant.remove(name);
+                return null;
+            }
+            room = restoreRoom(recovered);
+        } catch (IOException | CompletionException e) {
+            System.out.println("Could not load room " + name + ": " + e.getMessage());
+            return null;
+        }
+        rooms.put(name, room);
+        dormant.remove(name);
+        directory.changed();
+        Metrics.roomsLoaded.increment();
+        // Reclaimed again unless someone joins
+        room.scheduleReclaim();
+        return room;
+    }
+
+    static boolean roomExists(String name) {
+        return rooms.containsKey(name) || dormant.containsKey(name);
+    }
+
+    // Registers a room owned by this node, with creator (if any) already in it, and opens its log.
+    // Returns null if the name is taken.
+    static ChatRoom createRoom(String name, String password, ClientHandler creator) {
+        ChatRoom room = new ChatRoom(name, password);
+        if (creator != null) {
+            room.join(creator);
+        }
+
+        // Hold the new room's lock until its log exists, so no message can skip the log
+        room.lock.lock();
+        try {
+            // A dormant room keeps its name
+            if (dormant.containsKey(name) || rooms.putIfAbsent(name, room) != null) {
+                return null;
+            }
+            directory.changed();
+            if (messageLog != null) {
+                try {
+                    room.log = messageLog.createRoom(name, password);
+                } catch (IOException e) {
+                    System.out.println("Room " + name + " will not be persisted: " + e.getMessage());
+                }
+            }
+            try {
+                room.search = SearchIndex.create(room.log, 0, room.history.capacity());
+            } catch (IOException e) {
+                System.out.println("Room " + name + " will not be searchable: " + e.getMessage());
+            }
+        } finally {
+            room.lock.unlock();
+        }
+        return room;
+    }
+
+    // Executor that runs each blocking ClientHandler
+    static ExecutorService newHandlerExecutor(String mode) {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                // Looked up reflectively so the server still builds and runs before Java 21
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21 or newer, using platform threads.");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    // Handles each client. The login -> menu -> room flow is kept as an explicit
+    // state so the same handler can be driven by a blocking thread or an event loop.
     static class ClientHandler implements Runnable {
-        private final Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
+        // Which prompt the client is currently answering
+        enum State {
+            USERNAME, PASSWORD, NEW_PASSWORD,
+            MENU, JOIN_ROOM, JOIN_PASSWORD, CREATE_ROOM, CREATE_PASSWORD,
+            FRIEND_MENU, ADD_FRIEND, MESSAGE_FRIEND, PRIVATE_CHAT,
+            ROOM,
+            WAITING // an async step (password hashing) is running
+        }
+
+        private final Socket socket; // null when driven by the event loop
+        private final Executor writerExecutor;
+        // Where async results resume the state machine; null means wait on the calling thread
+        private final Executor resumeExecutor;
+        // Lines that arrived while WAITING, replayed in order afterwards
+        private final Deque<String> deferredLines = new ArrayDeque<>();
+        // Bytes of the line being read (thread-per-connection text clients)
+        private byte[] lineBuffer = new byte[256];
+        // Everything sent to this client goes through its outbound queue, so writers never block on the socket
+        final OutboundQueue outbound;
+        // Not autoflushed: what one input prints is flushed as a single message (see onLine)
+        private final PrintWriter out;
+        // Negotiated Frames instead of text lines; read by other members' broadcasts
+        volatile boolean binary = false;
         private String username;
+        private UserStore.User account = null; // looked up when the username is entered
         private ChatRoom currentRoom = null;
         private final Set<String> friends = new HashSet<>();
-        private String privateTarget = null;
+        private volatile boolean loggedIn = false; // friends are told when this goes back to false
+        private String privateTarget = null; // who this user's private chat is with
+        private String privateNode = null;   // cluster node privateTarget was found on, null for this one or offline
+        // Queued messages are gathered into a buffer this size, so each socket write carries as many as fit
+        private static final int WRITE_BATCH_BYTES = Integer.getInteger("chat.writeBatchBytes", 8192);
+        // How long the writer may wait for more messages before sending a partly filled batch, 0 sends at once
+        private static final long WRITE_LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.writeLingerMicros", 0));
+        // Most messages one /history page returns
+        private static final int MAX_HISTORY_PAGE = 200;
+        // Most matches one /search returns
+        private static final int MAX_SEARCH_RESULTS = 20;
+        // Session timeouts, 0 turns one off: time to log in, time without any input, and how
+        // long a binary client may stay quiet before it is pinged (and closed if it stays quiet)
+        private static final long LOGIN_TIMEOUT_MILLIS = Long.getLong("chat.loginTimeoutMillis", 60_000);
+        private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chat.idleTimeoutMillis", 0);
+        private static final long HEARTBEAT_MILLIS = Long.getLong("chat.heartbeatMillis", 30_000);
+        // What happens to room messages over the user's or the room's rate limit: "reject" tells
+        // the sender they were not sent, "coalesce" sends them later merged into one message
+        private static final boolean COALESCE_THROTTLED = "coalesce".equalsIgnoreCase(System.getProperty("chat.rateLimitPolicy", "reject"));
+        // Most characters held back for one coalesced message; what doesn't fit is rejected
+        private static final int MAX_COALESCED_CHARS = 4096;
 
-        private void handleFriendMenu() throws IOException {
-            while (true) {
-                //  // Check if this user has been targeted by someone (to be able to reply back)
-                // if (privateTarget != null) {
-                //     out.println("You are now chatting privately with " + privateTarget + ". Type /back to return to main menu.");
-
-                //     while (true) {
-                //         String msg = in.readLine();
-                //         if (msg.equalsIgnoreCase("/back")) {
-                //             out.println("You left the private chat with " + privateTarget + ".");
-                //             privateTarget = null;
-                //             break;
-                //         }
-
-                //         ClientHandler targetHandler = clients.get(privateTarget);
-                //         if (targetHandler != null) {
-                //             targetHandler.out.println("[" + username + "]: " + msg);
-                //         } else {
-                //             out.println("Friend is not online.");
-                //             privateTarget = null;
-                //             break;
-                //         }
-                //     }
-
-                //     // go back to main menu loop
-                //     continue;
-                // }
-                out.println("\nFriend Menu:");
-                out.println("1. View friends");
-                out.println("2. Add friend");
-                out.println("3. Message a friend");
-                out.println("4. Back to main menu");
-                out.println("Enter:");
-
-                String input = in.readLine();
-                if ("1".equals(input)) {
-                    out.println("Your friends: " + friends);
-                } else if ("2".equals(input)) {
-                    out.println("Enter username to add:");
-                    String friendName = in.readLine();
-                    if (clients.containsKey(friendName) && !friendName.equals(username)) {
-                        friends.add(friendName);
-                        out.println(friendName + " has been added to your friend list.");
-                    } else {
-                        out.println("User not found.");
-                    }
-                } else if ("3".equals(input)) {
-                    out.println("Enter a user username:");
-                    String target = in.readLine();
-
-                    if (friends.contains(target)) {
-                        ClientHandler targetHandler = clients.get(target);
-
-                        if (targetHandler != null) {
-                            out.println("Start messaging " + target + " (type /back to stop):");
-
-                            // Set each other's a direct reply back and forth
-                            privateTarget = target;
-                            targetHandler.privateTarget = this.username;
-
-                            while (true) {
-                                String msg = in.readLine();
-                                if (msg.equalsIgnoreCase("/back")) {
-                                    privateTarget = null;
-                                    targetHandler.privateTarget = null;
-                                    break;
-                                }
-
-                                targetHandler = clients.get(privateTarget);
-
-                                if (targetHandler != null) {
-                                    targetHandler.out.println("[" + username + "]: " + msg);
-                                } else {
-                                    out.println("Friend is no longer online.");
-                                    privateTarget = null;
-                                    break;
-                                }
+        private State state = State.USERNAME;
+        private String pendingRoom = null; // room name waiting for its password
+        // In JOIN_ROOM: the room list shown, and the part of it being paged through (all of it, or a /find)
+        private RoomDirectory.Snapshot listedRooms = null;
+        private RoomDirectory.Snapshot listing = null;
+        // Also read by the timer wheel thread
+        private volatile boolean closed = false;
+        private volatile boolean cleanedUp = false;
+
+        // Session timing in TimerWheel.now() milliseconds. lastActive is written on every input;
+        // the rest belongs to the timer wheel thread.
+        private final long connectedAt = timers.now();
+        private volatile long lastActive = connectedAt;
+        private long pingSentAt = Long.MIN_VALUE;
+        private volatile TimerWheel.Timeout sessionTimer = null;
+
+        // Chat messages this user may send to rooms (see sendToRoom)
+        final RateLimiter sendLimiter = RateLimiter.forUser();
+        // Throttled messages held back to go out as one, the room they are for, and the flush
+        // that sends them once there are tokens again. Guarded by sendLock, which is also held
+        // while a message is published, so held back messages never overtake or fall behind
+        // newer ones. A lock rather than a monitor: publishing can wait on the room lock, and a
+        // virtual thread waiting inside synchronized would hold on to its carrier thread.
+        private final ReentrantLock sendLock = new ReentrantLock();
+        private final StringBuilder coalesced = new StringBuilder();
+        private ChatRoom coalescedRoom = null;
+        private TimerWheel.Timeout coalescedFlush = null;
+        private boolean throttleNoticeSent = false; // one notice per run of throttled messages
+
+        // Connect clients to server
+        public ClientHandler(Socket socket, Executor writerExecutor) {
+            this.socket = socket;
+            this.writerExecutor = writerExecutor;
+            this.resumeExecutor = null;
+            this.outbound = new OutboundQueue(null);
+            this.out = new PrintWriter(outbound);
+            Metrics.connectionsOpened.increment();
+        }
+
+        // Used by the event loop, which drains the outbound queue when told it is ready
+        // and runs async continuations on its own thread
+        ClientHandler(Runnable onOutboundReady, Executor resumeExecutor) {
+            this.socket = null;
+            this.writerExecutor = null;
+            this.resumeExecutor = resumeExecutor;
+            this.outbound = new OutboundQueue(onOutboundReady);
+            this.out = new PrintWriter(outbound);
+            Metrics.connectionsOpened.increment();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        // Run (thread-per-connection mode)
+        public void run() {
+            try {
+                InputStream input = new BufferedInputStream(socket.getInputStream());
+                OutputStream socketOut = socket.getOutputStream();
+                writerExecutor.execute(() -> writeLoop(socketOut));
+
+                start();
+                // A binary client's first byte is a HELLO frame, a text client never sends a 0 byte
+                input.mark(1);
+                int first = input.read();
+                input.reset();
+                if (first == Frames.HELLO) {
+                    readFrames(new DataInputStream(input));
+                    return;
+                }
+
+                String line;
+                while (!closed && (line = readLine(input)) != null) {
+                    onLine(line);
+                }
+
+            } catch (IOException e) {
+                System.out.println("Connection error with user: " + username);
+            } finally {
+                // The writer closes the socket once everything queued has been sent
+                out.close();
+                cleanup();
+            }
+        }
+
+        // Next line without its "\r\n", or null once the client has gone away. Like the event loops,
+        // gives up on a client whose line runs past EventLoopServer.MAX_LINE_BYTES.
+        private String readLine(InputStream input) throws IOException {
+            int length = 0;
+            int b;
+            while ((b = input.read()) != '\n') {
+                if (b < 0) {
+                    return length > 0 ? new String(lineBuffer, 0, length, StandardCharsets.UTF_8) : null;
+                }
+                if (length == EventLoopServer.MAX_LINE_BYTES) {
+                    return null;
+                }
+                if (length == lineBuffer.length) {
+                    lineBuffer = Arrays.copyOf(lineBuffer, Math.min(EventLoopServer.MAX_LINE_BYTES, length * 2));
+                }
+                lineBuffer[length++] = (byte) b;
+            }
+            if (length > 0 && lineBuffer[length - 1] == '\r') {
+                length--;
+            }
+            return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // Reads frames into one reused buffer until the client goes away (thread-per-connection mode)
+        private void readFrames(DataInputStream input) throws IOException {
+            byte[] frame = new byte[Frames.MAX_PAYLOAD_BYTES];
+            ByteBuffer payload = ByteBuffer.wrap(frame);
+            while (!closed) {
+                int opcode = input.read();
+                if (opcode < 0) {
+                    return;
+                }
+                int length = input.readInt();
+                if (length < 0 || length > frame.length) {
+                    return;
+                }
+                input.readFully(frame, 0, length);
+                payload.clear().limit(length);
+                onFrame((byte) opcode, payload);
+            }
+        }
+
+        // Drains the outbound queue into the socket (thread-per-connection mode).
+        // Everything queued is gathered into one batch, so a burst costs one write, not one per message.
+        private void writeLoop(OutputStream socketOut) {
+            byte[] batch = new byte[WRITE_BATCH_BYTES];
+            try {
+                ByteBuffer message;
+                while ((message = outbound.take()) != null) {
+                    int length = 0;
+                    do {
+                        // Queued buffers are shared, so copy out with absolute gets
+                        for (int offset = message.position(); offset < message.limit(); ) {
+                            int n = Math.min(batch.length - length, message.limit() - offset);
+                            message.get(offset, batch, length, n);
+                            length += n;
+                            offset += n;
+                            if (length == batch.length) {
+                                write(socketOut, batch, length);
+                                length = 0;
                             }
                         }
-
-                    } else {
-                        out.println("User is not in your friend list.");
+                        message = outbound.poll();
+                        if (message == null && length > 0 && WRITE_LINGER_NANOS > 0) {
+                            message = outbound.poll(WRITE_LINGER_NANOS);
+                        }
+                    } while (message != null);
+                    if (length > 0) {
+                        write(socketOut, batch, length);
                     }
-                } else if ("4".equals(input)) {
-                    break;
-                } else {
-                    out.println("Invalid option.\n");
                 }
+            } catch (IOException | InterruptedException e) {
+                // Client went away; closing the socket below also ends the read loop
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {}
             }
         }
-    
-        // Connect clients to server
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+
+        private static void write(OutputStream socketOut, byte[] batch, int length) throws IOException {
+            socketOut.write(batch, 0, length);
+            OutboundQueue.socketWrites.increment();
         }
 
-        public void showAllRooms() {
-            synchronized (rooms) {  // Add thread safety
-                if (rooms.isEmpty()) {
-                    out.println("No rooms available.");
-                } else {
-                    out.println("\nAvailable Rooms:");
-                    for (Map.Entry<String, ChatRoom> entry : rooms.entrySet()) {
-                        String name = entry.getKey();
-                        int memberCount = entry.getValue().members.size();
-                        out.println("- " + name + " (" + memberCount + " members)");
+        // Null until the client has entered one
+        String username() {
+            return username;
+        }
+
+        // First prompt of a new connection
+        void start() {
+            out.println("Enter your username:");
+            out.flush();
+            scheduleSessionCheck(connectedAt);
+        }
+
+        // Arms the session timer for the nearest timeout; one timer per session, re-armed
+        // each time it fires rather than on every input
+        private void scheduleSessionCheck(long now) {
+            long next = Long.MAX_VALUE;
+            if (!loggedIn && LOGIN_TIMEOUT_MILLIS > 0) {
+                next = connectedAt + LOGIN_TIMEOUT_MILLIS;
+            }
+            if (IDLE_TIMEOUT_MILLIS > 0) {
+                next = Math.min(next, lastActive + IDLE_TIMEOUT_MILLIS);
+            }
+            // Before login the protocol may still turn out to be binary
+            if (HEARTBEAT_MILLIS > 0 && (binary || !loggedIn)) {
+                next = Math.min(next, Math.max(pingSentAt, lastActive) + HEARTBEAT_MILLIS);
+            }
+            sessionTimer = next == Long.MAX_VALUE ? null : timers.schedule(this::checkSession, next - now);
+        }
+
+        // Timer wheel thread: enforces the login and idle timeouts, and pings a binary client
+        // that has gone quiet, closing it if the ping goes unanswered
+        private void checkSession() {
+            if (closed || cleanedUp) {
+                return;
+            }
+            long now = timers.now();
+            long active = lastActive;
+            if (!loggedIn && LOGIN_TIMEOUT_MILLIS > 0 && now - connectedAt >= LOGIN_TIMEOUT_MILLIS) {
+                expire("Login timed out. Connection closing.");
+                return;
+            }
+            if (IDLE_TIMEOUT_MILLIS > 0 && now - active >= IDLE_TIMEOUT_MILLIS) {
+                expire("Idle for too long. Connection closing.");
+                return;
+            }
+            if (binary && HEARTBEAT_MILLIS > 0) {
+                if (pingSentAt > active) {
+                    if (now - pingSentAt >= HEARTBEAT_MILLIS) {
+                        expire("No answer to heartbeat. Connection closing.");
+                        return;
                     }
+                } else if (now - active >= HEARTBEAT_MILLIS) {
+                    outbound.offer(Frames.ping());
+                    pingSentAt = now;
                 }
             }
+            scheduleSessionCheck(now);
+        }
+
+        // Timer wheel thread: the notice goes out, then the connection is closed
+        private void expire(String reason) {
+            Metrics.sessionsExpired.increment();
+            closed = true;
+            notice(reason);
+            outbound.close();
+        }
+
+        // Queues an already encoded message after whatever this handler has printed so far
+        private void send(ByteBuffer message) {
             out.flush();
+            outbound.offer(message);
         }
 
-        // Run
-        public void run() {
+        // Feeds one line from the client into the state machine
+        void onLine(String line) {
+            Metrics.linesIn.increment();
+            lastActive = timers.now();
+            switch (state) {
+                case WAITING -> deferredLines.add(line);
+                case USERNAME -> onUsername(line);
+                case PASSWORD -> onPassword(line);
+                case NEW_PASSWORD -> onNewPassword(line);
+                case MENU -> onMenuOption(line);
+                case JOIN_ROOM -> onJoinRoom(line);
+                case JOIN_PASSWORD -> onJoinPassword(line);
+                case CREATE_ROOM -> onCreateRoom(line);
+                case CREATE_PASSWORD -> onCreatePassword(line);
+                case FRIEND_MENU -> onFriendOption(line);
+                case ADD_FRIEND -> onAddFriend(line);
+                case MESSAGE_FRIEND -> onMessageFriend(line);
+                case PRIVATE_CHAT -> onPrivateMessage(line);
+                case ROOM -> onRoomMessage(line);
+            }
+            // The whole response to this line goes out as one message
+            out.flush();
+        }
+
+        // Feeds one frame from a binary client into the state machine. The payload is
+        // only valid during the call.
+        void onFrame(byte opcode, ByteBuffer payload) {
+            lastActive = timers.now();
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Login / Register
-                while (true) {
-                    out.println("Enter your username:");
-                    String enteredUsername = null;
-                    while (true) {
-                        enteredUsername = in.readLine();
-                        if (enteredUsername != null && !enteredUsername.trim().isEmpty()) {
-                            break;
-                        }
-                        out.println("Invalid username. Please enter a valid username: ");
+                if (!binary) {
+                    // The first frame has to be HELLO
+                    if (opcode != Frames.HELLO || !Frames.isHello(payload)) {
+                        close();
+                        return;
                     }
-                    username = enteredUsername;
-
-                    synchronized (userPasswords) {
-                        if (userPasswords.containsKey(username)) {
-                            String correctPassword = userPasswords.get(username);
-                            boolean authenticated = false;
-
-                            while (!authenticated) {
-                                out.println("Username exists. Enter your password:");
-                                String enteredPassword = in.readLine();
-
-                                if (enteredPassword != null && enteredPassword.trim().equals(correctPassword)) {
-                                    authenticated = true;
-                                } else {
-                                    out.println("Wrong password. Try again.");
-                                }
-                            }
-                        } else {
-                            String newPassword = null;
-                            while (true) {
-                                out.println("New user. Set your password:");
-                                newPassword = in.readLine();
-                                if (newPassword != null && !newPassword.trim().isEmpty()) {
-                                    break;
-                                }
-                                out.println("Password cannot be empty. Please enter a valid password:");
-                            }
-                            userPasswords.put(username, newPassword);
-                            out.println("User registered successfully.");
-                        }
+                    outbound.useFrames();
+                    outbound.offer(Frames.hello());
+                    binary = true;
+                    return;
+                }
+
+                if (opcode != Frames.LINE) {
+                    // LINE is counted by onLine
+                    Metrics.linesIn.increment();
+                }
+                switch (opcode) {
+                    case Frames.LINE -> onLine(Frames.getText(payload));
+                    case Frames.JOIN -> onJoinFrame(Frames.getString(payload), Frames.getString(payload));
+                    case Frames.SEND -> onSendFrame(Frames.getText(payload));
+                    case Frames.HISTORY_PAGE -> onHistoryPageFrame(payload.getInt(), payload.getLong());
+                    case Frames.PONG -> {
+                        // Only counts as activity
+                    }
+                    default -> out.println("Unknown request.");
+                }
+                out.flush();
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // Malformed frame, the stream can't be trusted any more
+                close();
+            }
+        }
+
+        // JOIN: room name and password in one step, from the main menu
+        private void onJoinFrame(String roomName, String pass) {
+            if (state != State.MENU) {
+                out.println("Rooms can only be joined from the main menu.");
+                return;
+            }
+            if ((cluster == null || cluster.owns(roomName)) && !roomExists(roomName)) {
+                out.println("Room does not exist.");
+                showMenu();
+                return;
+            }
+            pendingRoom = roomName;
+            onJoinPassword(pass);
+        }
+
+        // SEND: a chat message taken as-is, so it can start with '/'
+        private void onSendFrame(String msg) {
+            if (state == State.ROOM && currentRoom != null) {
+                sendToRoom(msg);
+            } else if (state == State.PRIVATE_CHAT) {
+                sendPrivate(msg);
+            } else {
+                out.println("Join a room or a private chat first.");
+            }
+        }
+
+        // HISTORY_PAGE: same as /history, answered with a HISTORY frame
+        private void onHistoryPageFrame(int limit, long beforeSeq) {
+            if (state != State.ROOM || currentRoom == null) {
+                out.println("Join a room first.");
+                return;
+            }
+            int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+            if (currentRoom.remote) {
+                String roomName = currentRoom.roomName;
+                await(cluster.history(roomName, Math.max(-1, beforeSeq), pageSize), State.ROOM, null, page -> {
+                    if (page.entries() == null) {
+                        out.println("History is not available right now.");
+                    } else {
+                        send(Frames.history(roomName, page.entries()));
+                    }
+                });
+                return;
+            }
+            String roomName = currentRoom.roomName;
+            readHistory(currentRoom, beforeSeq < 0 ? currentRoom.nextSeq() : beforeSeq, pageSize, entries -> {
+                if (entries == null) {
+                    out.println("History is not available right now.");
+                } else {
+                    send(Frames.history(roomName, entries));
+                }
+            });
+        }
+
+        // A page of room's history for /history and HISTORY_PAGE, null if the log could not be
+        // read. A page the history holds is answered at once, one that takes the log is read
+        // through onDisk.
+        private void readHistory(ChatRoom room, long beforeSeq, int limit, Consumer<List<ChatHistory.Entry>> then) {
+            List<ChatHistory.Entry> cached = room.historyInMemory(beforeSeq, limit);
+            if (cached != null) {
+                then.accept(cached);
+                return;
+            }
+            await(onDisk(() -> room.historyBefore(beforeSeq, limit)), State.ROOM, null, then);
+        }
+
+        // Runs read, which may wait on the disk, for await: on this thread in the blocking
+        // modes, on diskReader for the event loops, where it would stall every connection on
+        // the loop. Completes with null if read fails, and fails itself if diskReader is full.
+        private <T> CompletableFuture<T> onDisk(Callable<T> read) {
+            if (resumeExecutor == null) {
+                return CompletableFuture.completedFuture(readOrNull(read));
+            }
+            CompletableFuture<T> result = new CompletableFuture<>();
+            try {
+                diskReader.execute(() -> result.complete(readOrNull(read)));
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        private static <T> T readOrNull(Callable<T> read) {
+            try {
+                return read.call();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        // Login / Register
+        private void onUsername(String enteredUsername) {
+            if (enteredUsername.trim().isEmpty()) {
+                out.println("Invalid username. Please enter a valid username: ");
+                return;
+            }
+            username = enteredUsername;
+
+            await(users.find(username), State.USERNAME, "Enter your username:", user -> {
+                account = user;
+                if (account != null) {
+                    out.println("Username exists. Enter your password:");
+                    state = State.PASSWORD;
+                } else {
+                    out.println("New user. Set your password:");
+                    state = State.NEW_PASSWORD;
+                }
+            });
+        }
+
+        private void onPassword(String enteredPassword) {
+            long started = System.nanoTime();
+            await(PasswordHasher.verify(enteredPassword.trim(), account.passwordHash()), State.PASSWORD,
+                "Username exists. Enter your password:", authenticated -> {
+                    Metrics.authNanos.record(System.nanoTime() - started);
+                    if (authenticated) {
+                        login();
+                    } else {
+                        Metrics.loginFailures.increment();
+                        Metrics.LoginEvent.emit(username, false);
+                        out.println("Wrong password. Try again.");
+                        out.println("Username exists. Enter your password:");
                     }
-                    // Check if user is already connected
-                    boolean addedToClients = false;
+                });
+        }
+
+        private void onNewPassword(String newPassword) {
+            if (newPassword.trim().isEmpty()) {
+                out.println("Password cannot be empty. Please enter a valid password:");
+                out.println("New user. Set your password:");
+                return;
+            }
+
+            long started = System.nanoTime();
+            await(PasswordHasher.hash(newPassword), State.NEW_PASSWORD,
+                "New user. Set your password:", hash -> {
+                    Metrics.authNanos.record(System.nanoTime() - started);
+                    boolean registered;
                     try {
-                        synchronized (clients) {
-                            if (clients.containsKey(username)) {
-                                out.println("User already logged in. Connection closing.");
-                                socket.close();
-                                return;
-                            }
-                            clients.put(username, this);
-                            addedToClients = true;
-                        }
-                    } catch (Exception e) {
-                        if (addedToClients) {
-                            synchronized (clients) {
-                                clients.remove(username);
-                            }
-                        }
-                        throw e; // rethrow
+                        registered = users.register(username, hash);
+                    } catch (IOException e) {
+                        Metrics.busy.increment();
+                        out.println("Server is busy. Please try again.");
+                        out.println("New user. Set your password:");
+                        return;
                     }
-                    out.println("Login successful. Welcome, " + username + "!");
-                    break;
-                }
-                // Options
-                while (true) {
-                    out.println("Do you want to:");
-                    out.println("1. Join a Room");
-                    out.println("2. Create a Room");
-                    out.println("3. Friend Menu");
-                    out.println("Enter:");
-
-                    String option = in.readLine();
-
-                    if ("1".equals(option)) {
-                        showAllRooms();
-                        if (rooms.isEmpty()) {
-                            out.println(" Please create one first.");
-                            continue;
-                        }
-                        
-                        out.println("Enter room name (or /back to cancel):");
-                        String roomName = in.readLine();
-                        
-                        if ("/back".equalsIgnoreCase(roomName)) {
-                            continue;
-                        }
+                    // Someone else may have registered the name while we were waiting for the password
+                    if (!registered) {
+                        onUsername(username);
+                        return;
+                    }
+                    account = new UserStore.User(username, hash, List.of());
+                    out.println("User registered successfully.");
+                    login();
+                });
+        }
 
-                        synchronized (rooms) {
-                            ChatRoom room = rooms.get(roomName);
-                            if (room == null) {
-                                out.println("Room does not exist. Try again or type /back to go back.");
-                                continue;
-                            }
+        // Runs then once future completes, without doing the work on this connection's thread.
+        // Blocking modes just wait here; the event loop parks the connection in WAITING and
+        // resumes it on the loop thread. If the work could not run (pool saturated), the
+        // client is told to retry and sent back to retryState with retryPrompt (if not null).
+        private <T> void await(CompletableFuture<T> future, State retryState, String retryPrompt, Consumer<T> then) {
+            state = retryState;
+            if (resumeExecutor == null) {
+                T result;
+                try {
+                    result = future.join();
+                } catch (CompletionException e) {
+                    Metrics.busy.increment();
+                    out.println("Server is busy. Please try again.");
+                    if (retryPrompt != null) {
+                        out.println(retryPrompt);
+                    }
+                    return;
+                }
+                then.accept(result);
+                return;
+            }
 
-                            out.println("Enter room password:");
-                            String pass = in.readLine();
+            state = State.WAITING;
+            future.whenCompleteAsync((result, error) -> {
+                if (closed || cleanedUp) {
+                    return;
+                }
+                state = retryState;
+                if (error != null) {
+                    Metrics.busy.increment();
+                    out.println("Server is busy. Please try again.");
+                    if (retryPrompt != null) {
+                        out.println(retryPrompt);
+                    }
+                } else {
+                    then.accept(result);
+                }
+                out.flush();
+                while (!deferredLines.isEmpty() && state != State.WAITING && !closed) {
+                    onLine(deferredLines.poll());
+                }
+            }, resumeExecutor);
+        }
 
-                            if (!room.password.equals(pass)) {
-                                out.println("Incorrect password. Try again.");
-                                continue;
-                            }
+        private void login() {
+            // Check if user is already connected
+            if (clients.putIfAbsent(username, this) != null) {
+                out.println("User already logged in. Connection closing.");
+                close();
+                return;
+            }
+            if (cluster != null) {
+                // or connected to another node
+                await(cluster.register(username), State.USERNAME, "Enter your username:", registered -> {
+                    if (registered) {
+                        welcome();
+                    } else {
+                        clients.remove(username, this);
+                        out.println("User already logged in. Connection closing.");
+                        close();
+                    }
+                });
+                return;
+            }
+            welcome();
+        }
 
-                            room.members.add(this);
-                            currentRoom = room;
-                            out.println("Joined room: " + roomName);
-                            
-                            // Send history to new member
-                            room.sendHistoryToNewMember(this);
-                            
-                            // Notify others
-                            room.broadcast("joined the room.\n", this);
-                            break;
-                        }
-                    } else if ("2".equals(option)) {
-                        out.println("Enter new room name:");
-                        String roomName = in.readLine();
-
-                        synchronized (rooms) {
-                            if (rooms.containsKey(roomName)) {
-                                out.println("Room already exists. Choose another name.");
-                                continue;
-                            }
+        private void welcome() {
+            friends.addAll(account.friends());
+            loggedIn = true;
+            presence.online(this, username, friends);
+            Metrics.logins.increment();
+            Metrics.LoginEvent.emit(username, true);
+            out.println("Login successful. Welcome, " + username + "!");
+            // Private messages that came while offline, then in cluster mode the ones kept
+            // elsewhere; newer ones are held back until both are queued
+            List<DirectMessages.Mail> mail = directMessages.login(this, username);
+            if (!mail.isEmpty()) {
+                send(DirectMessages.batch(mail, binary));
+            }
+            if (cluster != null) {
+                cluster.takeMail(username).whenComplete((kept, error) -> {
+                    if (kept != null && !kept.isEmpty()) {
+                        outbound.offer(DirectMessages.batch(kept, binary));
+                    }
+                    directMessages.open(this, username);
+                });
+            } else {
+                directMessages.open(this, username);
+            }
+            showMenu();
+        }
 
-                            out.println("Set room password:");
-                            String pass = in.readLine();
+        // Options
+        private void showMenu() {
+            out.println("Do you want to:");
+            out.println("1. Join a Room");
+            out.println("2. Create a Room");
+            out.println("3. Friend Menu");
+            out.println("Enter:");
+            state = State.MENU;
+        }
 
-                            ChatRoom room = new ChatRoom(roomName, pass);
-                            rooms.put(roomName, room);
-                            room.members.add(this);
-                            currentRoom = room;
-                            out.println("\nRoom created. You joined: " + roomName);
-                            break;
-                        }
-                    } else if ("3".equals(option)) {
-                        handleFriendMenu();
+        private void onMenuOption(String option) {
+            if ("1".equals(option)) {
+                if (cluster != null) {
+                    // Rooms are spread over the nodes, ask all of them
+                    await(directory.clusterSnapshot(), State.MENU, "Enter:", this::chooseRoom);
+                } else {
+                    chooseRoom(directory.snapshot());
+                }
+            } else if ("2".equals(option)) {
+                out.println("Enter new room name:");
+                state = State.CREATE_ROOM;
+            } else if ("3".equals(option)) {
+                showFriendMenu();
+            } else {
+                out.println("Invalid option.");
+                showMenu();
+            }
+        }
+
+        // Lists the first page of rooms to join, or goes back to the menu when there are none
+        private void chooseRoom(RoomDirectory.Snapshot snapshot) {
+            if (snapshot.size() == 0) {
+                out.println("No rooms available.");
+                out.println(" Please create one first.");
+                showMenu();
+                return;
+            }
+
+            listedRooms = snapshot;
+            listing = snapshot;
+            out.print(snapshot.page(0));
+            out.println("Enter room name (or /back to cancel):");
+            state = State.JOIN_ROOM;
+        }
+
+        private void onJoinRoom(String roomName) {
+            if ("/back".equalsIgnoreCase(roomName)) {
+                listedRooms = null;
+                listing = null;
+                showMenu();
+                return;
+            }
+            if (roomName.startsWith("/page ") || roomName.startsWith("/find ")) {
+                showRoomPage(roomName);
+                return;
+            }
+            listedRooms = null;
+            listing = null;
+
+            if (cluster != null && !cluster.owns(roomName)) {
+                await(cluster.roomExists(roomName), State.JOIN_ROOM, "Enter room name (or /back to cancel):",
+                    exists -> askJoinPassword(roomName, exists));
+                return;
+            }
+            askJoinPassword(roomName, roomExists(roomName));
+        }
+
+        private void askJoinPassword(String roomName, boolean exists) {
+            if (!exists) {
+                out.println("Room does not exist. Try again or type /back to go back.");
+                showMenu();
+                return;
+            }
+
+            pendingRoom = roomName;
+            out.println("Enter room password:");
+            state = State.JOIN_PASSWORD;
+        }
+
+        private void onJoinPassword(String pass) {
+            if (cluster != null && !cluster.owns(pendingRoom)) {
+                // The owner checks the password and sends the recent history along
+                ChatRoom replica = cluster.replica(pendingRoom);
+                await(cluster.join(replica, pass), State.JOIN_PASSWORD, "Enter room password:", joined -> {
+                    if (joined) {
+                        enterRoom(replica);
                     } else {
-                        out.println("Invalid option.");
+                        out.println("Incorrect password. Try again.");
+                        showMenu();
                     }
+                    cluster.joinFinished(replica);
+                });
+                return;
+            }
+
+            joinLocalRoom(pendingRoom, pass);
+        }
+
+        // A room of this node, which may have to be loaded from disk first
+        private void joinLocalRoom(String roomName, String pass) {
+            Consumer<ChatRoom> join = room -> {
+                if (room == null || !room.password.equals(pass)) {
+                    out.println("Incorrect password. Try again.");
+                    showMenu();
+                } else if (!enterRoom(room)) {
+                    // Reclaimed between the lookup and the join, load it again
+                    joinLocalRoom(roomName, pass);
                 }
+            };
+            CompletableFuture<ChatRoom> found = findRoom(roomName);
+            if (found.isDone()) {
+                join.accept(found.join());
+            } else {
+                await(found, State.JOIN_PASSWORD, "Enter room password:", join);
+            }
+        }
+
+        // False if the room was reclaimed before the join got in
+        private boolean enterRoom(ChatRoom room) {
+            if (!room.join(this)) {
+                return false;
+            }
+            currentRoom = room;
+            state = State.ROOM;
+            out.println("Joined room: " + pendingRoom);
+
+            // Send history to new member
+            room.sendHistoryToNewMember(this);
+
+            // Notify others
+            room.broadcastPresence(this, true);
+            return true;
+        }
+
+        private void onCreateRoom(String roomName) {
+            if (cluster != null && !cluster.owns(roomName)) {
+                await(cluster.roomExists(roomName), State.CREATE_ROOM, "Enter new room name:",
+                    exists -> askNewRoomPassword(roomName, exists));
+                return;
+            }
+            askNewRoomPassword(roomName, roomExists(roomName));
+        }
+
+        private void askNewRoomPassword(String roomName, boolean exists) {
+            if (exists) {
+                out.println("Room already exists. Choose another name.");
+                showMenu();
+                return;
+            }
 
-                // Main message loop
-                String msg;
-                while ((msg = in.readLine()) != null) {
-                    if (msg.equalsIgnoreCase("/exit")) {
-                        break;
+            pendingRoom = roomName;
+            out.println("Set room password:");
+            state = State.CREATE_PASSWORD;
+        }
+
+        private void onCreatePassword(String pass) {
+            if (cluster != null && !cluster.owns(pendingRoom)) {
+                ChatRoom replica = cluster.replica(pendingRoom);
+                await(cluster.create(replica, pass), State.CREATE_PASSWORD, "Set room password:", created -> {
+                    if (created) {
+                        replica.join(this);
+                        enterNewRoom(replica);
+                    } else {
+                        out.println("Room already exists. Choose another name.");
+                        showMenu();
                     }
+                    cluster.joinFinished(replica);
+                });
+                return;
+            }
 
-                    // Room chat
-                    if (currentRoom != null) {
-                        currentRoom.broadcast(msg, this);
-                    }              
+            // The name may have been taken while we were waiting for the password
+            ChatRoom room = createRoom(pendingRoom, pass, this);
+            if (room == null) {
+                out.println("Room already exists. Choose another name.");
+                showMenu();
+                return;
+            }
+            enterNewRoom(room);
+        }
+
+        private void enterNewRoom(ChatRoom room) {
+            currentRoom = room;
+            state = State.ROOM;
+            out.println("\nRoom created. You joined: " + pendingRoom);
+        }
+
+        private void showFriendMenu() {
+            out.println("\nFriend Menu:");
+            out.println("1. View friends");
+            out.println("2. Add friend");
+            out.println("3. Message a friend");
+            out.println("4. Back to main menu");
+            out.println("Enter:");
+            state = State.FRIEND_MENU;
+        }
+
+        private void onFriendOption(String input) {
+            if ("1".equals(input)) {
+                out.println("Your friends: " + friends);
+                showFriendMenu();
+            } else if ("2".equals(input)) {
+                out.println("Enter username to add:");
+                state = State.ADD_FRIEND;
+            } else if ("3".equals(input)) {
+                out.println("Enter a user username:");
+                state = State.MESSAGE_FRIEND;
+            } else if ("4".equals(input)) {
+                showMenu();
+            } else {
+                out.println("Invalid option.\n");
+                showFriendMenu();
+            }
+        }
+
+        private void onAddFriend(String friendName) {
+            if (cluster != null && !clients.containsKey(friendName)) {
+                // May be connected to another node
+                await(cluster.locate(friendName), State.ADD_FRIEND, "Enter username to add:",
+                    node -> addFriend(friendName, node != null));
+                return;
+            }
+            addFriend(friendName, clients.containsKey(friendName));
+        }
+
+        private void addFriend(String friendName, boolean online) {
+            if (online && !friendName.equals(username)) {
+                if (friends.add(friendName)) {
+                    presence.follow(this, friendName);
+                }
+                try {
+                    users.addFriend(username, friendName);
+                } catch (IOException e) {
+                    System.out.println("Could not save friend list of " + username + ": " + e.getMessage());
                 }
+                out.println(friendName + " has been added to your friend list.");
+            } else {
+                out.println("User not found.");
+            }
+            showFriendMenu();
+        }
 
-            } catch (IOException e) {
-                System.out.println("Connection error with user: " + username);
+        private void onMessageFriend(String target) {
+            if (!friends.contains(target)) {
+                out.println("User is not in your friend list.");
+                showFriendMenu();
+                return;
+            }
+
+            if (cluster != null && !clients.containsKey(target)) {
+                await(cluster.locate(target), State.MESSAGE_FRIEND, "Enter a user username:",
+                    node -> openPrivateChat(target, node, node != null));
+                return;
+            }
+            openPrivateChat(target, null, clients.containsKey(target));
+        }
+
+        // Only this side's chat is opened: the friend sees the messages wherever they are,
+        // and answers from their own private chat
+        private void openPrivateChat(String target, String node, boolean online) {
+            if (!online) {
+                out.println(target + " is offline. Messages will be delivered when they log in.");
+            }
+            out.println("Start messaging " + target + " (type /back to stop):");
+            privateTarget = target;
+            privateNode = node;
+            state = State.PRIVATE_CHAT;
+        }
+
+        private void onPrivateMessage(String msg) {
+            if (msg.equalsIgnoreCase("/back")) {
+                privateTarget = null;
+                privateNode = null;
+                showFriendMenu();
+                return;
+            }
+
+            sendPrivate(msg);
+        }
+
+        private void sendPrivate(String msg) {
+            if (cluster == null) {
+                directMessages.send(privateTarget, username, msg);
+            } else if (!directMessages.deliver(privateTarget, username, msg)) {
+                cluster.sendPrivate(privateNode, privateTarget, username, msg);
+            }
+        }
+
+        // Queues a private message from another user, who may be connected to another node
+        void deliverPrivate(String sender, String msg) {
+            if (binary) {
+                outbound.offer(Frames.privateMessage(sender, msg));
+            } else {
+                // Queued directly: this handler's PrintWriter belongs to its own thread
+                outbound.offer(OutboundQueue.encode("[" + sender + "]: " + msg + "\n"));
+            }
+        }
+
+        // Queues a one-line notice (see Presence)
+        void notice(String text) {
+            outbound.offer(binary ? Frames.text(Frames.TEXT, text + "\n") : OutboundQueue.encode(text + "\n"));
+        }
+
+        // Main message loop
+        private void onRoomMessage(String msg) {
+            if (msg.equalsIgnoreCase("/exit")) {
+                close();
+                return;
+            }
+            if (msg.startsWith("/history")) {
+                showHistoryPage(msg);
+                return;
+            }
+            if (msg.startsWith("/search")) {
+                showSearchResults(msg);
+                return;
+            }
+
+            // Room chat
+            if (currentRoom != null) {
+                sendToRoom(msg);
+            }
+        }
+
+        // Publishes a chat message if both this user and the room have a token for it, so a
+        // flooding client is stopped before its messages are multiplied by the room's members.
+        // Over the limit the message is rejected or held back, depending on COALESCE_THROTTLED.
+        private void sendToRoom(String msg) {
+            sendLock.lock();
+            try {
+                // Behind messages already held back, so they stay in order
+                if (coalescedRoom == null && admit(currentRoom)) {
+                    currentRoom.broadcast(msg, this);
+                    throttleNoticeSent = false;
+                    return;
+                }
+                Metrics.messagesThrottled.increment();
+                if (COALESCE_THROTTLED && coalesced.length() + msg.length() < MAX_COALESCED_CHARS) {
+                    Metrics.messagesCoalesced.increment();
+                    if (coalescedRoom == null) {
+                        coalescedRoom = currentRoom;
+                        scheduleCoalescedFlush();
+                    } else {
+                        coalesced.append('\n');
+                    }
+                    coalesced.append(msg);
+                    if (!throttleNoticeSent) {
+                        out.println("You are sending messages too fast. They will be sent together shortly.");
+                        throttleNoticeSent = true;
+                    }
+                    return;
+                }
+                Metrics.messagesRejected.increment();
+                if (!throttleNoticeSent) {
+                    out.println("You are sending messages too fast. Message not sent.");
+                    throttleNoticeSent = true;
+                }
             } finally {
-                try {
-                    if (in != null) in.close();
-                    if (out != null) out.close();
-                    if (socket != null && !socket.isClosed()) socket.close();
-                } catch (IOException e) {}
+                sendLock.unlock();
+            }
+        }
+
+        // Takes this user's token, then the room's. The user's token is given back if the room
+        // has none, so a busy room doesn't use up its members' own limits.
+        private boolean admit(ChatRoom room) {
+            long now = System.nanoTime();
+            if (!sendLimiter.tryAcquire(now)) {
+                return false;
+            }
+            if (!room.sendLimiter.tryAcquire(now)) {
+                sendLimiter.release();
+                return false;
+            }
+            return true;
+        }
+
+        // Caller holds sendLock. The flush is handed off the timer wheel thread, as a
+        // broadcast to a big room is too long to run there.
+        private void scheduleCoalescedFlush() {
+            long now = System.nanoTime();
+            long waitNanos = Math.max(sendLimiter.waitNanos(now), coalescedRoom.sendLimiter.waitNanos(now));
+            coalescedFlush = timers.schedule(() -> ForkJoinPool.commonPool().execute(this::flushCoalesced),
+                TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+        }
 
-                // Cleanup
-                synchronized (clients) {
-                    clients.remove(username);
+        // Sends the held back messages as one, or waits again if another message took the token
+        private void flushCoalesced() {
+            sendLock.lock();
+            try {
+                coalescedFlush = null;
+                if (coalescedRoom == null || closed || cleanedUp) {
+                    return;
+                }
+                if (!admit(coalescedRoom)) {
+                    scheduleCoalescedFlush();
+                    return;
                 }
+                coalescedRoom.broadcast(coalesced.toString(), this);
+                coalesced.setLength(0);
+                coalescedRoom = null;
+                throttleNoticeSent = false;
+            } finally {
+                sendLock.unlock();
+            }
+        }
 
-                if (currentRoom != null) {
-                    synchronized (rooms) {
-                        currentRoom.members.remove(this);
-                        currentRoom.broadcast("left the room.", this);
-                    }
+        // /history <n> [before <msgId>]
+        private void showHistoryPage(String command) {
+            String[] parts = command.trim().split("\\s+");
+            try {
+                if (parts.length != 2 && !(parts.length == 4 && "before".equalsIgnoreCase(parts[2]))) {
+                    throw new NumberFormatException();
                 }
+                int count = Integer.parseInt(parts[1]);
+                if (count <= 0) {
+                    throw new NumberFormatException();
+                }
+                int limit = Math.min(count, MAX_HISTORY_PAGE);
+                // Message ids start at 0, so nothing is before anything below 1
+                long before = parts.length == 4 ? Long.parseLong(parts[3]) : -1;
+                if (parts.length == 4 && before < 1) {
+                    throw new NumberFormatException();
+                }
+                if (currentRoom.remote) {
+                    // -1 asks the owner for its newest messages
+                    await(cluster.history(currentRoom.roomName, before, limit), State.ROOM, null, page -> out.print(
+                        page.entries() == null ? "History is not available right now.\n" : ChatRoom.formatPage(page.before(), limit, page.entries())));
+                    return;
+                }
+                long from = before < 0 ? currentRoom.nextSeq() : before;
+                readHistory(currentRoom, from, limit, entries -> out.print(
+                    entries == null ? "History is not available right now.\n" : ChatRoom.formatPage(from, limit, entries)));
+            } catch (NumberFormatException e) {
+                out.println("Usage: /history <n> [before <msgId>]");
+            }
+        }
 
-                System.out.println("User " + username + " disconnected.");
+        // /search <terms>: the newest messages containing all of them
+        private void showSearchResults(String command) {
+            String query = command.substring("/search".length()).trim();
+            if (query.isEmpty() || !command.startsWith("/search ")) {
+                out.println("Usage: /search <terms>");
+                return;
+            }
+            if (currentRoom.remote) {
+                await(cluster.search(currentRoom.roomName, query, MAX_SEARCH_RESULTS), State.ROOM, null, found -> out.print(
+                    found == null ? "Search is not available right now.\n" : ChatRoom.formatSearch(query, found)));
+                return;
             }
+            // Matches no longer in the history are read from the log, so off the event loop
+            ChatRoom room = currentRoom;
+            await(onDisk(() -> room.search(query, MAX_SEARCH_RESULTS)), State.ROOM, null, found -> out.print(
+                found == null ? "Search is not available right now.\n" : ChatRoom.formatSearch(query, found)));
         }
 
+        // /page <n> of the rooms listed, or /find <prefix> among all of them. Both read the
+        // snapshot shown with the list, so paging stays consistent while rooms change.
+        private void showRoomPage(String command) {
+            String argument = command.substring(command.indexOf(' ') + 1).trim();
+            if (command.startsWith("/find ")) {
+                if (argument.isEmpty()) {
+                    out.println("Usage: /find <prefix>");
+                } else {
+                    listing = listedRooms.find(argument);
+                    out.print(listing.size() == 0 ? "No rooms start with \"" + argument + "\".\n" : listing.page(0));
+                }
+            } else {
+                try {
+                    int page = Integer.parseInt(argument);
+                    if (page < 1 || page > listing.pageCount()) {
+                        throw new NumberFormatException();
+                    }
+                    out.print(listing.page(page - 1));
+                } catch (NumberFormatException e) {
+                    out.println("Pages go from 1 to " + Math.max(1, listing.pageCount()) + ".");
+                }
+            }
+            out.println("Enter room name (or /back to cancel):");
+        }
+
+        // Stops reading from the client; closing the writer closes the connection
+        void close() {
+            closed = true;
+            out.close();
+        }
+
+        // Cleanup, runs once when the connection goes away
+        void cleanup() {
+            if (cleanedUp) {
+                return;
+            }
+            cleanedUp = true;
+            Metrics.connectionsClosed.increment();
+            TimerWheel.Timeout timer = sessionTimer;
+            if (timer != null) {
+                timer.cancel();
+            }
+            // Messages still held back are dropped with the connection
+            sendLock.lock();
+            try {
+                if (coalescedFlush != null) {
+                    coalescedFlush.cancel();
+                    coalescedFlush = null;
+                }
+                coalescedRoom = null;
+            } finally {
+                sendLock.unlock();
+            }
+
+            if (username != null && clients.remove(username, this) && cluster != null) {
+                cluster.unregister(username);
+            }
+            if (loggedIn) {
+                presence.offline(this, username, friends);
+                directMessages.logout(this, username);
+            }
+
+            if (currentRoom != null) {
+                currentRoom.leave(this);
+                currentRoom.broadcastPresence(this, false);
+            }
+
+            System.out.println("User " + username + " disconnected.");
+        }
     }
 }
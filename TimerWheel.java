@@ -0,0 +1,169 @@
+// TimerWheel.java
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashed timer wheel for the server's many coarse timeouts (empty rooms, idle sessions,
+// heartbeats). One thread advances a ring of WHEEL_SIZE buckets every TICK_MILLIS; a timeout
+// sits in the bucket its deadline hashes to, with the number of full turns still to wait.
+// Scheduling and cancelling are O(1) from any thread: both only queue the timeout, and the
+// wheel thread links it into or out of its bucket's list on the next tick. A tick only
+// looks at one bucket, so a million pending timeouts cost neither a thread each nor a
+// priority queue. Deadlines are rounded up to a tick, and tasks run on the wheel thread, so
+// they have to be short.
+public class TimerWheel {
+    static final long TICK_MILLIS = Math.max(1, Long.getLong("chat.timerTickMillis", 100));
+    private static final int WHEEL_SIZE = 512; // power of two
+    // Timeouts moved from the queue into buckets per tick, so a burst can't stall expiry
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    // Ticks done so far; written by the wheel thread only
+    private volatile long tick = 0;
+
+    TimerWheel(String name) {
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Milliseconds since the wheel started, as of the last tick. Cheap enough to read on
+    // every message, for timestamps that are compared against timeouts.
+    long now() {
+        return tick * TICK_MILLIS;
+    }
+
+    // Runs task on the wheel thread once delayMillis have passed (rounded up to a tick)
+    Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        Timeout timeout = new Timeout(this, task, tick + ticks);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    // A scheduled task
+    static final class Timeout {
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadline; // in ticks
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // Wheel thread only
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // False if the task has already run (or is running)
+        boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+    }
+
+    // Doubly linked, so a cancelled timeout is unlinked without searching. Wheel thread only.
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        // Runs what is due this turn, counts the rest one turn closer
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private void run() {
+        long current = 0;
+        while (true) {
+            long sleepNanos = startNanos + TimeUnit.MILLISECONDS.toNanos((current + 1) * TICK_MILLIS) - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (timeout = scheduled.poll()) != null; i++) {
+                if (timeout.state.get() != PENDING) {
+                    continue;
+                }
+                // A deadline already passed goes in this tick's bucket
+                long due = Math.max(timeout.deadline, current);
+                timeout.rounds = (due - current) / WHEEL_SIZE;
+                wheel[(int) (due & (WHEEL_SIZE - 1))].add(timeout);
+            }
+            wheel[(int) (current & (WHEEL_SIZE - 1))].expire();
+            current++;
+            tick = current;
+        }
+    }
+}
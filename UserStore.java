@@ -0,0 +1,550 @@
+// UserStore.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Accounts and friend lists.
+//
+// On disk this is one append-only file of records, [int length][int crc32][payload] where the
+// payload is the username, password hash and friend names (DataOutput UTF strings). The newest
+// record for a name wins. In memory there is only a compact open-addressing index from a 64-bit
+// hash of the name to the file offset of its newest record (16 bytes per account), plus an LRU
+// cache of recently used accounts, so millions of accounts fit in a bounded heap. Names whose
+// hashes collide get a slot each, told apart by reading their records.
+//
+// Changes go into a dirty map and are written by a background thread in batches with one fsync
+// (write-behind), so login and /friend add never wait on the disk. The same thread compacts the
+// file once most of it is stale. Both write outside the index lock, which is only taken to
+// publish the result, and the cache has locks of its own, so lookups never wait on an fsync or
+// a compaction. Without a file the store just keeps everything in memory.
+public class UserStore {
+    static final int CACHE_SIZE = Integer.getInteger("chat.userCacheSize", 100_000);
+    static final long FLUSH_MILLIS = Long.getLong("chat.userFlushMillis", 200);
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    // One account. Immutable; changes replace it.
+    record User(String name, String passwordHash, List<String> friends) {
+        User withFriend(String friend) {
+            List<String> updated = new ArrayList<>(friends);
+            updated.add(friend);
+            return new User(name, passwordHash, List.copyOf(updated));
+        }
+    }
+
+    private final Path path;          // null when nothing is persisted
+    private FileChannel channel;
+    private long fileSize = 0;
+    private long liveBytes = 0;       // bytes of records that are still the newest for their name
+    private OffsetIndex index = new OffsetIndex(1024);
+
+    // Guards the index, the file position and the channel. Readers of the file take the read
+    // lock so compaction can swap the file underneath them.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Taken by flush and compact for their whole run, so only one of them writes files at a time
+    private final ReentrantLock writing = new ReentrantLock();
+    private final StripedCache cache;
+    // Changed accounts not yet on disk; always consulted before the cache and the file
+    private final ConcurrentHashMap<String, User> dirty = new ConcurrentHashMap<>();
+    private final ExecutorService readers;
+
+    UserStore(Path path) throws IOException {
+        this.path = path;
+        if (path == null) {
+            this.cache = new StripedCache(Integer.MAX_VALUE);
+            this.readers = null;
+            return;
+        }
+
+        this.cache = new StripedCache(CACHE_SIZE);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+        channel.truncate(fileSize);
+
+        this.readers = Executors.newFixedThreadPool(2, daemon("user-store-reader"));
+        Executors.newSingleThreadScheduledExecutor(daemon("user-store-writer"))
+            .scheduleWithFixedDelay(this::flushQuietly, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // The account, or null if there is none. Completes at once unless the file has to be read.
+    CompletableFuture<User> find(String name) {
+        User user = cached(name);
+        if (user != null || path == null) {
+            return CompletableFuture.completedFuture(user);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return readFromDisk(name);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, readers);
+    }
+
+    // Adds a new account. Returns false if the name is already taken.
+    boolean register(String name, String passwordHash) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (cached(name) != null || readFromDisk(name) != null) {
+                return false;
+            }
+            User user = new User(name, passwordHash, List.of());
+            markDirty(user);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void addFriend(String name, String friend) throws IOException {
+        lock.writeLock().lock();
+        try {
+            User user = cached(name);
+            if (user == null) {
+                user = readFromDisk(name);
+            }
+            if (user == null || user.friends().contains(friend)) {
+                return;
+            }
+            markDirty(user.withFriend(friend));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void markDirty(User user) {
+        if (path != null) {
+            dirty.put(user.name(), user);
+        }
+        cache.put(user.name(), user);
+    }
+
+    // Writes every pending change and fsyncs once. The records go past the end of the file
+    // that the index knows about, so they are written without the lock; it is only taken to
+    // point the index at them once they are on disk.
+    void flush() throws IOException {
+        if (path == null || dirty.isEmpty()) {
+            return;
+        }
+        writing.lock();
+        try {
+            List<User> batch = new ArrayList<>(dirty.values());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int[] lengths = new int[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] record = encode(batch.get(i));
+                lengths[i] = record.length;
+                bytes.write(record);
+            }
+
+            // Only this thread changes the file or its size while writing is held
+            long offset = fileSize;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            channel.force(false);
+
+            lock.writeLock().lock();
+            try {
+                fileSize += buffer.limit();
+                for (int i = 0; i < batch.size(); i++) {
+                    User user = batch.get(i);
+                    put(user.name(), offset, lengths[i]);
+                    offset += lengths[i];
+                    // Only clear it if nobody changed the account again meanwhile
+                    dirty.remove(user.name(), user);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            if (fileSize > MIN_COMPACT_BYTES && fileSize > 2 * liveBytes) {
+                compact();
+            }
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.out.println("Could not write user store " + path + ": " + e.getMessage());
+        }
+    }
+
+    private User cached(String name) {
+        User user = dirty.get(name);
+        if (user != null) {
+            return user;
+        }
+        return cache.get(name);
+    }
+
+    private User readFromDisk(String name) throws IOException {
+        if (path == null) {
+            return null;
+        }
+        User user = null;
+        lock.readLock().lock();
+        try {
+            // Other names with the same hash are passed over, not mistaken for a free name
+            long key = hash(name);
+            for (int slot = index.first(key); slot >= 0 && user == null; slot = index.next(key, slot)) {
+                User candidate = readRecord(channel, index.offsetAt(slot));
+                if (candidate != null && candidate.name().equals(name)) {
+                    user = candidate;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (user != null) {
+            cache.putIfAbsent(name, user);
+        }
+        return user;
+    }
+
+    // The index slot of name's newest record, or -1. Slots sharing its hash are probed until
+    // one holds name's own record. Callers hold the lock, or are loading.
+    private int slotOf(String name) throws IOException {
+        long key = hash(name);
+        for (int slot = index.first(key); slot >= 0; slot = index.next(key, slot)) {
+            User user = readRecord(channel, index.offsetAt(slot));
+            if (user != null && user.name().equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Rebuilds the index from the file; a torn last record is cut off by the caller
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            long offset = 0;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 4 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                try {
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                User user;
+                try {
+                    user = decode(body);
+                } catch (IOException e) {
+                    user = null;
+                }
+                if (user == null) {
+                    break;
+                }
+                put(user.name(), offset, 4 + length);
+                offset += 4 + length;
+            }
+            fileSize = offset;
+        }
+    }
+
+    // Rewrites the file with only the newest record of each account. The copy is made under
+    // the read lock, which lookups share; only swapping in the new file takes the write lock.
+    // Caller holds writing, so the index does not change during the copy.
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        OffsetIndex newIndex = new OffsetIndex(index.size() * 2);
+        long newSize = 0;
+        lock.readLock().lock();
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                long offset = index.offsetAt(slot);
+                if (offset < 0) {
+                    continue;
+                }
+                int length = 4 + readInt(channel, offset);
+                ByteBuffer record = ByteBuffer.allocate(length);
+                while (record.hasRemaining()) {
+                    channel.read(record, offset + record.position());
+                }
+                record.flip();
+                newIndex.add(index.keyAt(slot), newSize);
+                while (record.hasRemaining()) {
+                    newSize += out.write(record);
+                }
+            }
+            out.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            channel.close();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = newIndex;
+            fileSize = newSize;
+            liveBytes = newSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Points name at a record, retiring the bytes of the record it replaces
+    private void put(String name, long offset, int length) throws IOException {
+        int slot = slotOf(name);
+        if (slot >= 0) {
+            liveBytes -= 4 + readInt(channel, index.offsetAt(slot));
+            index.setOffset(slot, offset);
+        } else {
+            index.add(hash(name), offset);
+        }
+        liveBytes += length;
+    }
+
+    private static byte[] encode(User user) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeUTF(user.name());
+        data.writeUTF(user.passwordHash());
+        data.writeInt(user.friends().size());
+        for (String friend : user.friends()) {
+            data.writeUTF(friend);
+        }
+        byte[] body = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+        record.putInt(4 + body.length);
+        record.putInt((int) crc.getValue());
+        record.put(body);
+        return record.array();
+    }
+
+    // body is everything after the length; null if the checksum does not match
+    private static User decode(byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body, 4, body.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(body).getInt()) {
+            return null;
+        }
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body, 4, body.length - 4));
+        String name = data.readUTF();
+        String passwordHash = data.readUTF();
+        int friendCount = data.readInt();
+        List<String> friends = new ArrayList<>(friendCount);
+        for (int i = 0; i < friendCount; i++) {
+            friends.add(data.readUTF());
+        }
+        return new User(name, passwordHash, List.copyOf(friends));
+    }
+
+    private static User readRecord(FileChannel channel, long offset) throws IOException {
+        int length = readInt(channel, offset);
+        ByteBuffer body = ByteBuffer.allocate(length);
+        while (body.hasRemaining()) {
+            if (channel.read(body, offset + 4 + body.position()) < 0) {
+                return null;
+            }
+        }
+        return decode(body.array());
+    }
+
+    private static int readInt(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.getInt(0);
+    }
+
+    // 64-bit FNV-1a of the name's characters
+    static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash; // 0 marks an empty slot
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // LRU cache of accounts, split by name into stripes that each have their own lock and
+    // access-ordered map, so concurrent lookups rarely meet on a lock
+    static class StripedCache {
+        private static final int STRIPES = 16; // power of two
+
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        StripedCache(int capacity) {
+            int perStripe = Math.max(1, capacity / STRIPES);
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe(perStripe);
+            }
+        }
+
+        User get(String name) {
+            Stripe stripe = stripe(name);
+            stripe.lock.lock(); // an access-ordered map reorders on get
+            try {
+                return stripe.users.get(name);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        void put(String name, User user) {
+            Stripe stripe = stripe(name);
+            stripe.lock.lock();
+            try {
+                stripe.users.put(name, user);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        void putIfAbsent(String name, User user) {
+            Stripe stripe = stripe(name);
+            stripe.lock.lock();
+            try {
+                stripe.users.putIfAbsent(name, user);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        private Stripe stripe(String name) {
+            int h = name.hashCode();
+            return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        }
+
+        private static final class Stripe {
+            final ReentrantLock lock = new ReentrantLock();
+            final LinkedHashMap<String, User> users;
+
+            Stripe(int capacity) {
+                users = new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+                        return size() > capacity;
+                    }
+                };
+            }
+        }
+    }
+
+    // Open-addressing multimap from name hash to file offset, in two primitive arrays. Names
+    // that share a hash each have a slot in the same probe run.
+    static class OffsetIndex {
+        private long[] keys;
+        private long[] offsets;
+        private int size = 0;
+
+        OffsetIndex(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            keys = new long[capacity];
+            offsets = new long[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        long keyAt(int slot) {
+            return keys[slot];
+        }
+
+        // Offset stored in a slot, or -1 if it is empty
+        long offsetAt(int slot) {
+            return keys[slot] == 0 ? -1 : offsets[slot];
+        }
+
+        // First slot holding key, or -1
+        int first(long key) {
+            return probe(key, (int) mix(key) & (keys.length - 1));
+        }
+
+        // Next slot after slot holding key, or -1
+        int next(long key, int slot) {
+            return probe(key, (slot + 1) & (keys.length - 1));
+        }
+
+        private int probe(long key, int slot) {
+            int mask = keys.length - 1;
+            for (; keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        void setOffset(int slot, long offset) {
+            offsets[slot] = offset;
+        }
+
+        // Takes a new slot, even if other slots already hold key
+        void add(long key, long offset) {
+            if ((size + 1) * 4L > keys.length * 3L) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = (int) mix(key) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            offsets[slot] = offset;
+            size++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldOffsets = offsets;
+            keys = new long[oldKeys.length * 2];
+            offsets = new long[oldOffsets.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    add(oldKeys[i], oldOffsets[i]);
+                }
+            }
+        }
+
+        private static long mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            return key ^ (key >>> 33);
+        }
+    }
+}
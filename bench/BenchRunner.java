@@ -0,0 +1,173 @@
+// BenchRunner.java
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+// Small JMH-style runner: timed warmup and measurement iterations on a fixed set of
+// threads, reporting throughput, latency percentiles and bytes allocated per operation
+// (like JMH's gc.alloc.rate.norm, counted on the threads running the benchmark only).
+public class BenchRunner {
+    static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmupIterations", 3);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    static final long ITERATION_MILLIS = Long.getLong("bench.iterationMillis", 1000);
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    // Builds the operation one thread runs, on that thread, before the first iteration
+    interface OpFactory {
+        Op create(int thread) throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // What one thread did in one iteration
+    private static class Sample {
+        long ops;
+        long allocatedBytes;
+        final Histogram latency = new Histogram();
+    }
+
+    private static volatile boolean running;
+
+    static void printHeader() {
+        System.out.printf("%-28s %7s %14s %10s %10s %10s %10s %10s%n",
+            "benchmark", "threads", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "B/op");
+    }
+
+    static void run(String name, int threadCount, OpFactory factory) throws Exception {
+        int total = WARMUP_ITERATIONS + ITERATIONS;
+        Sample[][] samples = new Sample[threadCount][total];
+        Exception[] failure = new Exception[1];
+        CyclicBarrier barrier = new CyclicBarrier(threadCount + 1);
+
+        // The chat code logs to stdout, keep that out of the report
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Thread[] workers = new Thread[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        Op op = factory.create(thread);
+                        for (int iteration = 0; iteration < total; iteration++) {
+                            barrier.await();
+                            samples[thread][iteration] = measure(op);
+                            barrier.await();
+                        }
+                    } catch (Exception e) {
+                        // Keep the first failure, not the broken barriers it causes
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                        barrier.reset();
+                    }
+                }, name + "-" + t);
+                workers[t].start();
+            }
+
+            for (int iteration = 0; iteration < total; iteration++) {
+                running = true;
+                barrier.await();
+                Thread.sleep(ITERATION_MILLIS);
+                running = false;
+                barrier.await();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (BrokenBarrierException e) {
+            throw failure[0] != null ? failure[0] : e;
+        } finally {
+            System.setOut(console);
+        }
+
+        report(name, threadCount, samples);
+    }
+
+    private static Sample measure(Op op) throws Exception {
+        Sample sample = new Sample();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        while (running) {
+            long start = System.nanoTime();
+            op.run();
+            sample.latency.record(System.nanoTime() - start);
+            sample.ops++;
+        }
+        sample.allocatedBytes = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        return sample;
+    }
+
+    // Warmup iterations are left out
+    private static void report(String name, int threadCount, Sample[][] samples) {
+        Histogram latency = new Histogram();
+        long ops = 0;
+        long allocated = 0;
+        for (Sample[] thread : samples) {
+            for (int iteration = WARMUP_ITERATIONS; iteration < thread.length; iteration++) {
+                latency.add(thread[iteration].latency);
+                ops += thread[iteration].ops;
+                allocated += thread[iteration].allocatedBytes;
+            }
+        }
+        double seconds = ITERATIONS * ITERATION_MILLIS / 1000.0;
+        System.out.printf("%-28s %7d %14.0f %10.2f %10.2f %10.2f %10.2f %10.0f%n",
+            name, threadCount, ops / seconds,
+            latency.percentile(0.50) / 1000.0, latency.percentile(0.90) / 1000.0,
+            latency.percentile(0.99) / 1000.0, latency.percentile(0.999) / 1000.0,
+            ops == 0 ? 0.0 : (double) allocated / ops);
+    }
+
+    // Log-linear latency histogram: 16 buckets per power of two, so values are within ~6%
+    static class Histogram {
+        private final long[] counts = new long[1024];
+        private long total = 0;
+
+        void record(long nanos) {
+            counts[index(Math.max(1, nanos))]++;
+            total++;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+        }
+
+        // Lower bound of the bucket holding the given fraction of values, in nanoseconds
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return value(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int index(long value) {
+            if (value < 16) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - 4)) & 15;
+            return (exponent - 3) * 16 + mantissa;
+        }
+
+        private static long value(int index) {
+            if (index < 16) {
+                return index;
+            }
+            int exponent = index / 16 + 3;
+            return (16L + index % 16) << (exponent - 4);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+// ChatBench.java
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Benchmarks for the server's hot paths. Room members are real ClientHandlers whose
+// outbound queues drain into an in-memory sink instead of a socket.
+//
+//   javac -encoding UTF-8 -d out *.java bench/*.java
+//   java -cp out ChatBench [fanout] [history] [rooms] [login]
+public class ChatBench {
+    private static final int HOT_ROOMS = 16;
+
+    public static void main(String[] args) throws Exception {
+        Set<String> selected = args.length == 0 ? Set.of("fanout", "history", "rooms", "login") : Set.of(args);
+        BenchRunner.printHeader();
+        if (selected.contains("fanout")) {
+            fanout();
+        }
+        if (selected.contains("history")) {
+            history();
+        }
+        if (selected.contains("rooms")) {
+            rooms();
+        }
+        if (selected.contains("login")) {
+            login();
+        }
+    }
+
+    // One ChatRoom.broadcast to every member of a room, text and binary members
+    private static void fanout() throws Exception {
+        for (boolean binary : new boolean[] {false, true}) {
+            for (int members : new int[] {10, 100, 10_000}) {
+                Server.ChatRoom room = new Server.ChatRoom("bench", "pw");
+                Server.ClientHandler sender = sink("sender");
+                room.join(sender);
+                for (int i = 0; i < members; i++) {
+                    Server.ClientHandler member = sink("member" + i);
+                    member.binary = binary;
+                    room.join(member);
+                }
+                BenchRunner.run((binary ? "fanout.frames/" : "fanout.text/") + members, 1,
+                    thread -> () -> room.broadcast("hello everyone", sender));
+            }
+        }
+    }
+
+    // ChatHistory append, rendering the join replay, and handing out the cached replay
+    private static void history() throws Exception {
+        for (int capacity : new int[] {100, 1_000, 10_000}) {
+            ChatHistory history = filled(capacity);
+            BenchRunner.run("history.append/" + capacity, 1,
+                thread -> () -> history.append("user", "a message of ordinary length"));
+        }
+        for (int capacity : new int[] {100, 1_000, 10_000}) {
+            ChatHistory history = filled(capacity);
+            BenchRunner.run("history.appendReplay/" + capacity, 1, thread -> () -> {
+                history.append("user", "a message of ordinary length");
+                history.replay();
+            });
+        }
+        for (int capacity : new int[] {100, 1_000, 10_000}) {
+            ChatHistory history = filled(capacity);
+            BenchRunner.run("history.cachedReplay/" + capacity, 1, thread -> history::replay);
+        }
+    }
+
+    // Looking rooms up in the server's registry and joining/leaving them from many threads,
+    // and creating/removing rooms the way onCreatePassword does
+    private static void rooms() throws Exception {
+        Map<String, Server.ChatRoom> rooms = serverField("rooms");
+        for (int i = 0; i < HOT_ROOMS; i++) {
+            rooms.put("hot" + i, new Server.ChatRoom("hot" + i, "pw"));
+        }
+        for (int threads : new int[] {1, 4, 16}) {
+            BenchRunner.run("rooms.joinLeave", threads, thread -> {
+                Server.ClientHandler member = sink("member" + thread);
+                return () -> {
+                    Server.ChatRoom room = rooms.get("hot" + ThreadLocalRandom.current().nextInt(HOT_ROOMS));
+                    room.join(member);
+                    room.leave(member);
+                };
+            });
+        }
+        for (int threads : new int[] {1, 4, 16}) {
+            BenchRunner.run("rooms.createRemove", threads, thread -> () -> {
+                String name = "room" + thread + "-" + ThreadLocalRandom.current().nextInt(1024);
+                Server.ChatRoom room = new Server.ChatRoom(name, "pw");
+                if (rooms.putIfAbsent(name, room) == null) {
+                    rooms.remove(name, room);
+                }
+            });
+        }
+        rooms.clear();
+    }
+
+    // Username + password through the handler's state machine, against an in-memory
+    // UserStore. Includes the PBKDF2 cost set by -Dchat.pbkdf2Iterations.
+    private static void login() throws Exception {
+        Field usersField = Server.class.getDeclaredField("users");
+        usersField.setAccessible(true);
+        UserStore users = new UserStore(null);
+        usersField.set(null, users);
+        Field directMessagesField = Server.class.getDeclaredField("directMessages");
+        directMessagesField.setAccessible(true);
+        directMessagesField.set(null, new DirectMessages(null));
+
+        String hash = PasswordHasher.hash("pw").join();
+        for (int threads : new int[] {1, 4}) {
+            BenchRunner.run("login", threads, thread -> {
+                String name = "bench" + thread;
+                users.register(name, hash);
+                return () -> {
+                    Server.ClientHandler handler = sink(null);
+                    handler.start();
+                    handler.onLine(name);
+                    handler.onLine("pw");
+                    handler.cleanup();
+                };
+            });
+        }
+    }
+
+    private static ChatHistory filled(int capacity) {
+        ChatHistory history = new ChatHistory(capacity);
+        for (int i = 0; i < capacity; i++) {
+            history.append("user", "a message of ordinary length");
+        }
+        return history;
+    }
+
+    // Handler whose outbound queue is drained as soon as something is offered, like a
+    // socket that is always writable
+    private static Server.ClientHandler sink(String username) throws Exception {
+        Server.ClientHandler[] self = new Server.ClientHandler[1];
+        long[] sunk = new long[1];
+        self[0] = new Server.ClientHandler(() -> {
+            ByteBuffer message;
+            while ((message = self[0].outbound.poll()) != null) {
+                sunk[0] += message.remaining();
+            }
+        }, null);
+        if (username != null) {
+            Field field = Server.ClientHandler.class.getDeclaredField("username");
+            field.setAccessible(true);
+            field.set(self[0], username);
+        }
+        return self[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T serverField(String name) throws Exception {
+        Field field = Server.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return (T) field.get(null);
+    }
+}
@@ -0,0 +1,471 @@
+// LoadGenerator.java
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Headless load test against a running Server, speaking the Frames protocol. Every
+// connection registers and logs in, the first member of each room creates it and the
+// rest join, then everyone chats at a fixed rate. Reports connection setup time,
+// message throughput and end-to-end delivery latency. Exits with 1 if any connection
+// failed, so it can gate CI.
+//
+//   java -cp out -Dload.clients=1000 -Dload.rooms=10 -Dload.seconds=30 LoadGenerator
+//
+// Sent messages carry System.nanoTime(), so the generator and the server must share a host.
+public class LoadGenerator {
+    static final String HOST = System.getProperty("load.host", "localhost");
+    static final int PORT = Integer.getInteger("load.port", 12345);
+    static final int CLIENTS = Integer.getInteger("load.clients", 1000);
+    static final int ROOMS = Integer.getInteger("load.rooms", 10);
+    static final double RATE = Double.parseDouble(System.getProperty("load.rate", "1")); // messages per second per client
+    static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    static final int MESSAGE_BYTES = Integer.getInteger("load.messageBytes", 64);
+    static final int LOOPS = Integer.getInteger("load.loops", Runtime.getRuntime().availableProcessors());
+    // How long each setup phase (login, create, join) may take before the run gives up
+    static final int SETUP_SECONDS = Integer.getInteger("load.setupSeconds", 300);
+    static final String PASSWORD = "load-pw";
+
+    public static void main(String[] args) throws Exception {
+        // Names are unique per run, so a server with a data dir can be reused
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        Loop[] loops = new Loop[Math.max(1, LOOPS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop();
+            new Thread(loops[i], "load-loop-" + i).start();
+        }
+
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            connections.add(new Connection(loops[i % loops.length], "load-" + run + "-" + i,
+                "room-" + run + "-" + (i % ROOMS)));
+        }
+        System.out.println("Connecting " + CLIENTS + " clients to " + HOST + ":" + PORT
+            + " (" + ROOMS + " rooms, " + loops.length + " loops)...");
+
+        long start = System.nanoTime();
+        boolean ready = phase("login", connections, Connection::login)
+            && phase("create", connections.subList(0, Math.min(ROOMS, CLIENTS)), Connection::createRoom)
+            && phase("join", connections.subList(Math.min(ROOMS, CLIENTS), CLIENTS), Connection::joinRoom);
+        System.out.printf("Setup took %.1f s%n", (System.nanoTime() - start) / 1e9);
+
+        if (ready) {
+            for (Loop loop : loops) {
+                loop.execute(() -> loop.startChat(System.nanoTime()));
+            }
+            Thread.sleep(SECONDS * 1000L);
+            for (Loop loop : loops) {
+                loop.execute(loop::stopChat);
+            }
+            // Let deliveries still in flight arrive
+            Thread.sleep(1000);
+        }
+        for (Loop loop : loops) {
+            loop.execute(loop::shutdown);
+            loop.finished.await();
+        }
+
+        int failed = report(loops, connections);
+        System.exit(failed > 0 || !ready ? 1 : 0);
+    }
+
+    // Runs one setup step on every connection and waits for all of them to answer
+    private static boolean phase(String name, List<Connection> connections, Consumer<Connection> step)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(connections.size());
+        long start = System.nanoTime();
+        for (Connection connection : connections) {
+            connection.loop.execute(() -> {
+                connection.step = done;
+                step.accept(connection);
+            });
+        }
+        boolean finished = done.await(SETUP_SECONDS, TimeUnit.SECONDS);
+        System.out.printf("  %-6s %d clients in %.1f s%s%n", name, connections.size(),
+            (System.nanoTime() - start) / 1e9, finished ? "" : " (timed out)");
+        return finished;
+    }
+
+    private static int report(Loop[] loops, List<Connection> connections) {
+        BenchRunner.Histogram latency = new BenchRunner.Histogram();
+        BenchRunner.Histogram setup = new BenchRunner.Histogram();
+        long sent = 0;
+        long received = 0;
+        for (Loop loop : loops) {
+            latency.add(loop.latency);
+            setup.add(loop.setup);
+            sent += loop.sent;
+            received += loop.received;
+        }
+
+        // Every message goes to everyone else in its room
+        int[] roomSizes = new int[ROOMS];
+        for (int i = 0; i < CLIENTS; i++) {
+            roomSizes[i % ROOMS]++;
+        }
+        double fanout = 0;
+        for (int size : roomSizes) {
+            fanout += (double) size * (size - 1);
+        }
+        fanout /= CLIENTS;
+
+        int failed = 0;
+        for (Connection connection : connections) {
+            if (connection.failed) {
+                failed++;
+            }
+        }
+
+        System.out.printf("Connections:  %d ok, %d failed%n", CLIENTS - failed, failed);
+        System.out.printf("Setup (connect to logged in):  p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms%n",
+            setup.percentile(0.50) / 1e6, setup.percentile(0.99) / 1e6, setup.percentile(0.999) / 1e6);
+        System.out.printf("Sent:         %d messages, %.0f/s%n", sent, (double) sent / SECONDS);
+        System.out.printf("Delivered:    %d of ~%.0f expected, %.0f/s%n", received, sent * fanout, (double) received / SECONDS);
+        System.out.printf("Latency:      p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms%n",
+            latency.percentile(0.50) / 1e6, latency.percentile(0.90) / 1e6,
+            latency.percentile(0.99) / 1e6, latency.percentile(0.999) / 1e6);
+        return failed;
+    }
+
+    // One selector thread driving a share of the connections
+    static class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Connection> chatting = new ArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        private boolean running = true;
+        private boolean chat = false;
+
+        // Owned by the loop thread, read by main after finished
+        final BenchRunner.Histogram latency = new BenchRunner.Histogram();
+        final BenchRunner.Histogram setup = new BenchRunner.Histogram();
+        long sent = 0;
+        long received = 0;
+
+        Loop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void startChat(long now) {
+            chat = true;
+            // Spread first sends over one interval so clients don't fire in lockstep
+            long interval = intervalNanos();
+            Random random = new Random();
+            for (Connection connection : chatting) {
+                connection.nextSend = now + (long) (random.nextDouble() * interval);
+            }
+        }
+
+        void stopChat() {
+            chat = false;
+        }
+
+        void shutdown() {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(chat ? 1 : 100);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isConnectable()) {
+                            connection.finishConnect();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+
+                    if (chat) {
+                        long now = System.nanoTime();
+                        for (Connection connection : chatting) {
+                            if (now >= connection.nextSend && !connection.failed) {
+                                connection.chat(now);
+                                connection.nextSend += intervalNanos();
+                            }
+                        }
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private static long intervalNanos() {
+            return (long) (1e9 / RATE);
+        }
+    }
+
+    // One scripted client. Each prompt answer gets exactly one TEXT frame back, so the
+    // script sends the next input when the previous one has been answered.
+    static class Connection {
+        final Loop loop;
+        private final String username;
+        private final String room;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        private final ArrayDeque<ByteBuffer> script = new ArrayDeque<>();
+        private Consumer<String> onScriptDone; // gets the last TEXT answer
+        private boolean greeted = false;
+        private boolean awaitingAnswer = false;
+        CountDownLatch step; // current setup phase, counted down once per connection
+        private long connectStart;
+        long nextSend;
+        volatile boolean failed = false;
+        private byte[] padding;
+
+        Connection(Loop loop, String username, String room) {
+            this.loop = loop;
+            this.username = username;
+            this.room = room;
+        }
+
+        // Connect, register (or log in) and wait for the main menu
+        void login() {
+            connectStart = System.nanoTime();
+            run(List.of(line(username), line(PASSWORD)), answer -> {
+                if (answer.contains("Login successful")) {
+                    loop.setup.record(System.nanoTime() - connectStart);
+                    stepDone();
+                } else {
+                    fail();
+                }
+            });
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(new InetSocketAddress(HOST, PORT));
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void createRoom() {
+            run(List.of(line("2"), line(room), line(PASSWORD)), answer -> {
+                if (answer.contains("Room created")) {
+                    loop.chatting.add(this);
+                    stepDone();
+                } else {
+                    fail();
+                }
+            });
+        }
+
+        void joinRoom() {
+            run(List.of(Frames.join(room, PASSWORD)), answer -> {
+                if (answer.contains("Joined room")) {
+                    loop.chatting.add(this);
+                    stepDone();
+                } else {
+                    fail();
+                }
+            });
+        }
+
+        // One chat message stamped with the send time
+        void chat(long now) {
+            if (padding == null) {
+                padding = new byte[Math.max(0, MESSAGE_BYTES - 20)];
+                Arrays.fill(padding, (byte) 'x');
+            }
+            String body = now + "|" + new String(padding, StandardCharsets.US_ASCII);
+            send(Frames.text(Frames.SEND, body));
+            loop.sent++;
+        }
+
+        private void run(List<ByteBuffer> inputs, Consumer<String> done) {
+            if (failed) {
+                stepDone();
+                return;
+            }
+            script.addAll(inputs);
+            onScriptDone = done;
+            if (greeted) {
+                next(null);
+            }
+        }
+
+        private void next(String answer) {
+            ByteBuffer input = script.poll();
+            if (input == null) {
+                Consumer<String> done = onScriptDone;
+                onScriptDone = null;
+                done.accept(answer);
+                return;
+            }
+            awaitingAnswer = true;
+            send(input);
+        }
+
+        void finishConnect() {
+            try {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void read() {
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                fail();
+                return;
+            }
+
+            in.flip();
+            if (!greeted) {
+                // The greeting is the only text line, frames start after our HELLO
+                int end = -1;
+                for (int i = in.position(); i < in.limit() && end < 0; i++) {
+                    if (in.get(i) == '\n') {
+                        end = i;
+                    }
+                }
+                if (end < 0) {
+                    in.compact();
+                    return;
+                }
+                in.position(end + 1);
+                greeted = true;
+                send(Frames.hello());
+                next(null);
+            }
+
+            while (in.remaining() >= Frames.HEADER_BYTES) {
+                int length = in.getInt(in.position() + 1);
+                if (in.remaining() < Frames.HEADER_BYTES + length) {
+                    break;
+                }
+                byte opcode = in.get(in.position());
+                int payload = in.position() + Frames.HEADER_BYTES;
+                onFrame(opcode, payload, length);
+                in.position(payload + length);
+            }
+            in.compact();
+
+            // Make room for a frame bigger than the buffer (a long history replay)
+            if (in.position() >= Frames.HEADER_BYTES) {
+                int needed = Frames.HEADER_BYTES + in.getInt(1);
+                if (needed > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(needed);
+                    in.flip();
+                    bigger.put(in);
+                    in = bigger;
+                }
+            }
+        }
+
+        private void onFrame(byte opcode, int payload, int length) {
+            if (opcode == Frames.MESSAGE) {
+                // seq, timestamp, room, sender, then the body, which starts with the send time
+                int body = payload + 16;
+                body += 2 + Short.toUnsignedInt(in.getShort(body));
+                body += 2 + Short.toUnsignedInt(in.getShort(body));
+                body += 2;
+                long sentAt = 0;
+                for (int i = body; i < payload + length && in.get(i) != '|'; i++) {
+                    sentAt = sentAt * 10 + (in.get(i) - '0');
+                }
+                loop.latency.record(System.nanoTime() - sentAt);
+                loop.received++;
+            } else if (opcode == Frames.TEXT && awaitingAnswer) {
+                awaitingAnswer = false;
+                next(new String(in.array(), payload, length, StandardCharsets.UTF_8));
+            }
+        }
+
+        private void send(ByteBuffer frame) {
+            out.add(frame);
+            flush();
+        }
+
+        void flush() {
+            try {
+                while (!out.isEmpty()) {
+                    ByteBuffer frame = out.peek();
+                    channel.write(frame);
+                    if (frame.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    out.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        private void stepDone() {
+            if (step != null) {
+                step.countDown();
+                step = null;
+            }
+        }
+
+        private void fail() {
+            if (!failed) {
+                failed = true;
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException ignored) {}
+            }
+            script.clear();
+            onScriptDone = null;
+            stepDone();
+        }
+
+        private static ByteBuffer line(String text) {
+            return Frames.text(Frames.LINE, text);
+        }
+    }
+}
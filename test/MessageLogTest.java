@@ -0,0 +1,61 @@
+// MessageLogTest.java
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Recovery checks for MessageLog, run against a temporary data directory. Exits with 1
+// if any check fails.
+//
+//   javac -encoding UTF-8 -d out *.java test/*.java
+//   java -cp out MessageLogTest
+public class MessageLogTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        largeRecord();
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // A message longer than a record may be is cut to fit, and the records after it survive a restart
+    private static void largeRecord() throws Exception {
+        Path dataDir = Files.createTempDirectory("messagelog-test");
+        MessageLog log = new MessageLog(dataDir);
+        MessageLog.RoomLog room = log.createRoom("large", "pw");
+        String large = "x".repeat(2 * 1024 * 1024);
+        check(room.append(0, 1, "alice", "before"), "first message queued");
+        check(room.append(1, 2, "alice", large), "large message queued");
+        check(room.append(2, 3, "bob", "after"), "message after the large one queued");
+        log.close();
+
+        MessageLog reopened = new MessageLog(dataDir);
+        List<MessageLog.RecoveredRoom> rooms = reopened.recover(name -> 10);
+        check(rooms.size() == 1, "one room recovered");
+        if (rooms.size() == 1) {
+            MessageLog.RecoveredRoom recovered = rooms.get(0);
+            List<MessageLog.Record> recent = recovered.recent();
+            check(recovered.nextSeq() == 3, "next id is 3, was " + recovered.nextSeq());
+            check(recent.size() == 3, "three messages recovered, was " + recent.size());
+            if (recent.size() == 3) {
+                check(recent.get(0).body().equals("before"), "first message intact");
+                int bytes = recent.get(1).body().getBytes(StandardCharsets.UTF_8).length;
+                check(bytes > 0 && bytes < large.length() && large.startsWith(recent.get(1).body()),
+                    "large message cut to a prefix, " + bytes + " bytes");
+                check(recent.get(2).body().equals("after") && recent.get(2).sender().equals("bob"),
+                    "message after the large one intact");
+            }
+        }
+        reopened.close();
+    }
+
+    private static void check(boolean passed, String what) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        if (!passed) {
+            failures++;
+        }
+    }
+}